@@ -0,0 +1,22 @@
+// Fragment shader for chunks built with greedy meshing (see GreedyMesher.java).
+// Merged faces carry UVs in tile units and the texture rectangle of their
+// tile, so the tile repeats once per unit. Ordinary faces have a zero tile
+// rectangle and UVs that address the texture directly.
+
+varying vec2 v_vTextureCoord;
+varying vec4 v_vTile;
+varying vec4 v_vColour;
+
+uniform sampler2D in_Texture;
+
+void main()
+{
+    vec2 texCoord = v_vTextureCoord;
+    
+    if (v_vTile != vec4(0.)) {
+        // Same texels as drawing each face on its own
+        texCoord = mix(v_vTile.xy, v_vTile.zw, fract(v_vTextureCoord));
+    }
+    
+    gl_FragColor = v_vColour * texture2D(in_Texture, texCoord);
+}
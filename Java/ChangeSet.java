@@ -0,0 +1,87 @@
+package com.edutect.up.api.jackson;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.cirrusaustralia.cub.ejb.UpEntity;
+
+/**
+ * The properties of a deserialized entity that differ from the managed
+ * entity it updates, with the managed (old) and deserialized (new) value of
+ * each. An entity with no managed entity is new, and is saved whole.
+ *
+ * @author Joel
+ */
+public class ChangeSet {
+
+	private final UpEntity entity;
+	private final boolean isNew;
+
+	// Old and new value of each changed property, in the order found
+	private final Map<String, Object[]> changes = new LinkedHashMap<String, Object[]>();
+
+	public ChangeSet(UpEntity entity, boolean isNew) {
+		this.entity = entity;
+		this.isNew = isNew;
+	}
+
+	/**
+	 * Records a changed property. If it was already recorded the first old
+	 * value is kept.
+	 */
+	public void add(String name, Object oldValue, Object newValue) {
+		Object[] values = changes.get(name);
+		if (values == null) {
+			changes.put(name, new Object[] { oldValue, newValue });
+		} else {
+			values[1] = newValue;
+		}
+	}
+
+	/**
+	 * Gets the deserialized entity the changes are for.
+	 */
+	public UpEntity getEntity() {
+		return entity;
+	}
+
+	/**
+	 * Whether the entity is new rather than an update.
+	 */
+	public boolean isNew() {
+		return isNew;
+	}
+
+	/**
+	 * Whether nothing needs saving.
+	 */
+	public boolean isEmpty() {
+		return !isNew && changes.isEmpty();
+	}
+
+	public Set<String> getNames() {
+		return Collections.unmodifiableSet(changes.keySet());
+	}
+
+	public boolean isChanged(String name) {
+		return changes.containsKey(name);
+	}
+
+	public Object getOldValue(String name) {
+		Object[] values = changes.get(name);
+		return values != null ? values[0] : null;
+	}
+
+	public Object getNewValue(String name) {
+		Object[] values = changes.get(name);
+		return values != null ? values[1] : null;
+	}
+
+	@Override
+	public String toString() {
+		return entity.getClass().getSimpleName() + "#" + entity.getId()
+				+ (isNew ? " (new)" : " " + changes.keySet());
+	}
+}
@@ -0,0 +1,129 @@
+package com.edutect.up.api.jackson;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.cirrusaustralia.cub.ejb.UpEntity;
+
+/**
+ * Change sets for the entities of one deserialized document, so the save
+ * path can send only the changed properties and skip entities that match
+ * their managed entity. Entities with no change set were found unchanged.
+ *
+ * @author Joel
+ */
+public class ChangeTracker {
+
+	// Change sets by deserialized entity
+	private final Map<UpEntity, ChangeSet> changeSets = new IdentityHashMap<UpEntity, ChangeSet>();
+
+	/**
+	 * Gets an entity's change set, creating it if it has none.
+	 */
+	public ChangeSet track(UpEntity entity, boolean isNew) {
+		ChangeSet changeSet = changeSets.get(entity);
+		if (changeSet == null) {
+			changeSet = new ChangeSet(entity, isNew);
+			changeSets.put(entity, changeSet);
+		}
+		return changeSet;
+	}
+
+	/**
+	 * Gets an entity's change set.
+	 *
+	 * @return The change set, or null if the entity was not tracked
+	 */
+	public ChangeSet get(UpEntity entity) {
+		return changeSets.get(entity);
+	}
+
+	/**
+	 * Whether an entity needs saving.
+	 */
+	public boolean isChanged(UpEntity entity) {
+		ChangeSet changeSet = changeSets.get(entity);
+		return changeSet != null && !changeSet.isEmpty();
+	}
+
+	/**
+	 * Gets the change sets of every entity that needs saving. Once the save
+	 * commits, pass them to <code>EntityCache.invalidateSaved</code>.
+	 */
+	public Collection<ChangeSet> getChanged() {
+		List<ChangeSet> changed = new ArrayList<ChangeSet>();
+		for (ChangeSet changeSet : changeSets.values()) {
+			if (!changeSet.isEmpty()) {
+				changed.add(changeSet);
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Adds the change sets of another tracker, such as one kept for part of
+	 * the same document.
+	 */
+	public void addAll(ChangeTracker other) {
+		changeSets.putAll(other.changeSets);
+	}
+
+	/**
+	 * Forgets the change sets of some entities, such as those of an element
+	 * that has been saved.
+	 */
+	public void removeAll(Collection<?> entities) {
+		for (Object entity : entities) {
+			changeSets.remove(entity);
+		}
+	}
+
+	public void clear() {
+		changeSets.clear();
+	}
+
+	/**
+	 * Whether a deserialized value matches a managed one. Entities match on
+	 * class and ID (new entities never match), and lists element by element.
+	 */
+	public static boolean same(Object oldValue, Object newValue) {
+		if (oldValue == newValue) {
+			return true;
+		}
+		if (oldValue == null || newValue == null) {
+			return false;
+		}
+
+		if (newValue instanceof UpEntity) {
+			if (!(oldValue instanceof UpEntity)) {
+				return false;
+			}
+			UpEntity o = (UpEntity) oldValue;
+			UpEntity n = (UpEntity) newValue;
+			return n.getId() != 0 && o.getId() == n.getId()
+					&& (o.getClass().isInstance(n) || n.getClass().isInstance(o));
+		}
+
+		if (newValue instanceof List) {
+			if (!(oldValue instanceof List)) {
+				return false;
+			}
+			List<?> o = (List<?>) oldValue;
+			List<?> n = (List<?>) newValue;
+			if (o.size() != n.size()) {
+				return false;
+			}
+			for (int i = 0; i < n.size(); i++) {
+				if (!same(o.get(i), n.get(i))) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		return newValue.equals(oldValue);
+	}
+}
@@ -0,0 +1,128 @@
+package engine;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds chunk meshes from <code>ChunkSnapshot</code>s on a pool of worker
+ * threads. Built snapshots are collected with poll on the render thread,
+ * which uploads their meshes and then releases them back to the pool.
+ *
+ * @author Joel
+ */
+public final class ChunkBuilder {
+	private final ExecutorService executor;
+
+	// Recycled snapshots and meshes (meshes hold direct buffers, so keep them)
+	private final ConcurrentLinkedQueue<ChunkSnapshot> snapshotPool = new ConcurrentLinkedQueue<ChunkSnapshot>();
+	private final ConcurrentLinkedQueue<ChunkMesh> meshPool = new ConcurrentLinkedQueue<ChunkMesh>();
+
+	// Snapshots whose meshes are ready for upload
+	private final ConcurrentLinkedQueue<ChunkSnapshot> built = new ConcurrentLinkedQueue<ChunkSnapshot>();
+
+	private final AtomicInteger pending = new AtomicInteger();
+
+	private final ThreadLocal<GreedyMesher> greedyMesher = new ThreadLocal<GreedyMesher>() {
+		@Override
+		protected GreedyMesher initialValue() {
+			return new GreedyMesher();
+		}
+	};
+
+	/**
+	 * Creates a builder with one thread per core, less one for the render thread.
+	 */
+	public ChunkBuilder() {
+		this(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+	}
+
+	public ChunkBuilder(int threads) {
+		executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ChunkBuilder-" + count.incrementAndGet());
+				t.setDaemon(true);
+				t.setPriority(Thread.NORM_PRIORITY - 1);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Gets an empty snapshot to record a chunk into.
+	 * @param
+	 * 			uvTransform	Atlas UV transform for the graphic, or null
+	 */
+	public ChunkSnapshot acquire(Graphic graphic, int chunk, int generation,
+			boolean greedy, float[] uvTransform) {
+		ChunkSnapshot snapshot = snapshotPool.poll();
+		if (snapshot == null) {
+			snapshot = new ChunkSnapshot();
+		}
+		snapshot.reset(graphic, chunk, generation, greedy, uvTransform);
+		return snapshot;
+	}
+
+	/**
+	 * Queues a recorded snapshot to be built.
+	 */
+	public void submit(final ChunkSnapshot snapshot) {
+		pending.incrementAndGet();
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				ChunkMesh mesh = meshPool.poll();
+				if (mesh == null) {
+					mesh = new ChunkMesh();
+				}
+
+				try {
+					snapshot.build(mesh, greedyMesher.get());
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+					mesh.clear();
+				}
+
+				snapshot.mesh = mesh;
+				built.add(snapshot);
+				pending.decrementAndGet();
+			}
+		});
+	}
+
+	/**
+	 * Gets the next built snapshot, or null if none are ready.
+	 */
+	public ChunkSnapshot poll() {
+		return built.poll();
+	}
+
+	/**
+	 * Returns a polled snapshot and its mesh to the pool.
+	 */
+	public void release(ChunkSnapshot snapshot) {
+		if (snapshot.mesh != null) {
+			meshPool.add(snapshot.mesh);
+			snapshot.mesh = null;
+		}
+		snapshot.graphic = null;
+		snapshot.uvTransform = null;
+		snapshotPool.add(snapshot);
+	}
+
+	/**
+	 * Gets the number of snapshots submitted but not yet built.
+	 */
+	public int getPendingCount() {
+		return pending.get();
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+}
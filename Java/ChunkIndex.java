@@ -0,0 +1,136 @@
+package engine;
+
+import java.util.Arrays;
+
+/**
+ * Index of which entity slots are in which chunk, for a single graphic.
+ * Each chunk heads an intrusive doubly linked list of nodes, so a chunk's
+ * entities can be walked and entities moved between chunks without scanning
+ * the graphic's instances or allocating.
+ *
+ * @author Joel
+ */
+public final class ChunkIndex {
+	// Chunk to first node, and entity slot to node
+	private final IntIntMap heads = new IntIntMap();
+	private final IntIntMap nodes = new IntIntMap();
+
+	// Nodes
+	private int[] nodeSlot = new int[64];
+	private int[] nodeChunk = new int[64];
+	private int[] nodeNext = new int[64];
+	private int[] nodePrev = new int[64];
+	private int nodeCount;
+	private int freeNode = -1;
+
+	/**
+	 * Gets the chunk an entity slot is indexed under.
+	 * @return
+	 * 			The chunk, or -1 if the slot is not indexed
+	 */
+	public int getChunk(int slot) {
+		int node = nodes.get(slot, -1);
+		return node < 0 ? -1 : nodeChunk[node];
+	}
+
+	/**
+	 * Indexes an entity slot under a chunk, moving it if it was under another.
+	 */
+	public void put(int slot, int chunk) {
+		int node = nodes.get(slot, -1);
+
+		if (node >= 0) {
+			if (nodeChunk[node] == chunk) {
+				return;
+			}
+			unlink(node);
+		} else {
+			node = allocate();
+			nodeSlot[node] = slot;
+			nodes.put(slot, node);
+		}
+
+		link(node, chunk);
+	}
+
+	/**
+	 * Removes an entity slot from the index.
+	 */
+	public void remove(int slot) {
+		int node = nodes.remove(slot, -1);
+
+		if (node >= 0) {
+			unlink(node);
+			nodeNext[node] = freeNode;
+			freeNode = node;
+		}
+	}
+
+	/**
+	 * Gets the first node of a chunk's list, or -1 if it has none.
+	 */
+	public int first(int chunk) {
+		return heads.get(chunk, -1);
+	}
+
+	/**
+	 * Gets the node after a node in its chunk's list, or -1 at the end.
+	 */
+	public int next(int node) {
+		return nodeNext[node];
+	}
+
+	/**
+	 * Gets the entity slot a node holds.
+	 */
+	public int getSlot(int node) {
+		return nodeSlot[node];
+	}
+
+	private void link(int node, int chunk) {
+		int head = heads.get(chunk, -1);
+
+		nodeChunk[node] = chunk;
+		nodePrev[node] = -1;
+		nodeNext[node] = head;
+
+		if (head >= 0) {
+			nodePrev[head] = node;
+		}
+		heads.put(chunk, node);
+	}
+
+	private void unlink(int node) {
+		int prev = nodePrev[node];
+		int next = nodeNext[node];
+
+		if (prev >= 0) {
+			nodeNext[prev] = next;
+		} else if (next >= 0) {
+			heads.put(nodeChunk[node], next);
+		} else {
+			heads.remove(nodeChunk[node], -1);
+		}
+
+		if (next >= 0) {
+			nodePrev[next] = prev;
+		}
+	}
+
+	private int allocate() {
+		if (freeNode >= 0) {
+			int node = freeNode;
+			freeNode = nodeNext[node];
+			return node;
+		}
+
+		if (nodeCount == nodeSlot.length) {
+			int n = nodeCount * 2;
+			nodeSlot = Arrays.copyOf(nodeSlot, n);
+			nodeChunk = Arrays.copyOf(nodeChunk, n);
+			nodeNext = Arrays.copyOf(nodeNext, n);
+			nodePrev = Arrays.copyOf(nodePrev, n);
+		}
+		return nodeCount++;
+	}
+}
@@ -0,0 +1,316 @@
+package engine;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * CPU-side builder for the geometry of a single chunk. Vertices are packed into
+ * a reusable direct buffer as interleaved position/normal/UV/tile floats, ready
+ * to be uploaded as a VBO. Makes no GL calls so it can be used without a context.
+ * <p>
+ * The tile rectangle is zero for ordinary faces, whose UVs address the texture
+ * directly. Tiled faces (see <code>GreedyMesher</code>) instead carry UVs in
+ * tile units along with the rectangle of the tile to repeat.
+ *
+ * @author Joel
+ */
+public final class ChunkMesh {
+	// Vertex layout
+	public static final int FLOATS_PER_VERTEX = 12;
+	public static final int BYTES_PER_VERTEX = FLOATS_PER_VERTEX * 4;
+	public static final int POSITION_OFFSET = 0;
+	public static final int NORMAL_OFFSET = 3 * 4;
+	public static final int UV_OFFSET = 6 * 4;
+	public static final int TILE_OFFSET = 8 * 4;
+
+	// Face bits (matches Entity.getExposedFaces())
+	public static final int FACE_TOP = 0;
+	public static final int FACE_FRONT = 1;
+	public static final int FACE_LEFT = 2;
+	public static final int FACE_RIGHT = 3;
+	public static final int FACE_BACK = 4;
+	public static final int FACE_BOTTOM = 5;
+
+	// Size of a tile in the texture, in pixels
+	public static final int TILE_SIZE = 32;
+
+	private ByteBuffer bytes;
+	private FloatBuffer floats;
+	private int vertices;
+
+	// Tile rectangle of the face being added
+	private final float[] tile = new float[4];
+
+	// Bounding box of the vertices added so far
+	private float minX, minY, minZ, maxX, maxY, maxZ;
+
+	// Maps texture UVs into an atlas page (offset then scale)
+	private float uOffset, vOffset, uScale = 1f, vScale = 1f;
+
+	public ChunkMesh() {
+		this(4096);
+	}
+
+	public ChunkMesh(int initialVertices) {
+		allocate(initialVertices);
+		clear();
+	}
+
+	/**
+	 * Empties the mesh, keeping its buffer for reuse.
+	 */
+	public void clear() {
+		floats.clear();
+		vertices = 0;
+
+		minX = minY = minZ = Float.POSITIVE_INFINITY;
+		maxX = maxY = maxZ = Float.NEGATIVE_INFINITY;
+	}
+
+	public int getVertexCount() {
+		return vertices;
+	}
+
+	public int getByteCount() {
+		return vertices * BYTES_PER_VERTEX;
+	}
+
+	/**
+	 * Sets the transform applied to the UVs and tile rectangles of faces
+	 * added after this, for textures packed into a <code>TextureAtlas</code>.
+	 * @param
+	 * 			transform	u0, v0, uScale, vScale, or null for none
+	 */
+	public void setUVTransform(float[] transform) {
+		if (transform == null) {
+			uOffset = vOffset = 0f;
+			uScale = vScale = 1f;
+		} else {
+			uOffset = transform[0];
+			vOffset = transform[1];
+			uScale = transform[2];
+			vScale = transform[3];
+		}
+	}
+
+	/**
+	 * Copies the mesh's bounding box into an array.
+	 * @param
+	 * 			bounds		Receives minX, minY, minZ, maxX, maxY, maxZ
+	 * 			offset		Index to start writing at
+	 */
+	public void getBounds(float[] bounds, int offset) {
+		bounds[offset + 0] = minX;
+		bounds[offset + 1] = minY;
+		bounds[offset + 2] = minZ;
+		bounds[offset + 3] = maxX;
+		bounds[offset + 4] = maxY;
+		bounds[offset + 5] = maxZ;
+	}
+
+	/**
+	 * Gets a view of the packed vertex data, from 0 to the last vertex written.
+	 * @return
+	 * 			Direct buffer ready to be passed to glBufferData
+	 */
+	public ByteBuffer getBuffer() {
+		ByteBuffer buffer = bytes.duplicate();
+		buffer.position(0);
+		buffer.limit(getByteCount());
+		return buffer;
+	}
+
+	/**
+	 * Adds the exposed faces of a unit box, using the same tile layout and
+	 * winding that immediate-mode drawBox used.
+	 * @param
+	 * 			x, y, z		Position of the box's minimum corner
+	 * 			faces		Bitmask of exposed faces
+	 * 			texWidth	Width of the texture the tiles are taken from
+	 * 			top...		Tile indices for each face
+	 */
+	public void addBox(float x, float y, float z, int faces, int texWidth,
+			int top, int front, int left, int right, int back, int bottom) {
+		if (faces == 0) {
+			return;
+		}
+
+		int tilesPerRow = texWidth / TILE_SIZE;
+		float tileUnit = 1f / tilesPerRow;
+		float txl = 1f / texWidth;
+
+		float x2 = x + 1f, y2 = y + 1f, z2 = z + 1f;
+
+		if ((faces & (1 << FACE_TOP)) != 0) {
+			addTile(FACE_TOP, x, y, z, x2, y2, z2, top, tilesPerRow, tileUnit, txl);
+		}
+		if ((faces & (1 << FACE_FRONT)) != 0) {
+			addTile(FACE_FRONT, x, y, z, x2, y2, z2, front, tilesPerRow, tileUnit, txl);
+		}
+		if ((faces & (1 << FACE_LEFT)) != 0) {
+			addTile(FACE_LEFT, x, y, z, x2, y2, z2, left, tilesPerRow, tileUnit, txl);
+		}
+		if ((faces & (1 << FACE_RIGHT)) != 0) {
+			addTile(FACE_RIGHT, x, y, z, x2, y2, z2, right, tilesPerRow, tileUnit, txl);
+		}
+		if ((faces & (1 << FACE_BACK)) != 0) {
+			addTile(FACE_BACK, x, y, z, x2, y2, z2, back, tilesPerRow, tileUnit, txl);
+		}
+		if ((faces & (1 << FACE_BOTTOM)) != 0) {
+			addTile(FACE_BOTTOM, x, y, z, x2, y2, z2, bottom, tilesPerRow, tileUnit, txl);
+		}
+	}
+
+	private void addTile(int face, float x1, float y1, float z1, float x2,
+			float y2, float z2, int tile, int tilesPerRow, float tileUnit, float txl) {
+		float u1 = tile % tilesPerRow * tileUnit + txl;
+		float u2 = (tile % tilesPerRow + 1) * tileUnit - txl;
+		float v1 = 1f - (tile / tilesPerRow + 1) * tileUnit + txl;
+		float v2 = 1f - tile / tilesPerRow * tileUnit - txl;
+
+		addFace(face, x1, y1, z1, x2, y2, z2,
+				uOffset + u1 * uScale, vOffset + v1 * vScale,
+				uOffset + u2 * uScale, vOffset + v2 * vScale,
+				0f, 0f, 0f, 0f);
+	}
+
+	/**
+	 * Gets the texture rectangle of a tile, inset by a texel as drawBox does.
+	 * @param
+	 * 			tile		Tile index
+	 * 			texWidth	Width of the texture the tile is taken from
+	 * 			rect		Receives u1, v1, u2, v2
+	 */
+	public static void getTileRect(int tile, int texWidth, float[] rect) {
+		int tilesPerRow = texWidth / TILE_SIZE;
+		float tileUnit = 1f / tilesPerRow;
+		float txl = 1f / texWidth;
+
+		rect[0] = tile % tilesPerRow * tileUnit + txl;
+		rect[1] = 1f - (tile / tilesPerRow + 1) * tileUnit + txl;
+		rect[2] = (tile % tilesPerRow + 1) * tileUnit - txl;
+		rect[3] = 1f - tile / tilesPerRow * tileUnit - txl;
+	}
+
+	/**
+	 * Adds one face of an axis-aligned box as a quad that repeats a tile.
+	 * @param
+	 * 			face		Face index (FACE_TOP...FACE_BOTTOM)
+	 * 			x1...z2		Box extents
+	 * 			repeatU		Times the tile repeats from bottom left to bottom right
+	 * 			repeatV		Times the tile repeats from bottom left to top left
+	 * 			rect		Tile rectangle from getTileRect
+	 */
+	public void addTiledFace(int face, float x1, float y1, float z1, float x2,
+			float y2, float z2, float repeatU, float repeatV, float[] rect) {
+		addFace(face, x1, y1, z1, x2, y2, z2, 0f, 0f, repeatU, repeatV,
+				uOffset + rect[0] * uScale, vOffset + rect[1] * vScale,
+				uOffset + rect[2] * uScale, vOffset + rect[3] * vScale);
+	}
+
+	/**
+	 * Adds one face of an axis-aligned box as a quad. Vertices are emitted
+	 * bottom left, bottom right, top right, top left.
+	 * @param
+	 * 			face		Face index (FACE_TOP...FACE_BOTTOM)
+	 * 			x1...z2		Box extents
+	 * 			u1...v2		Texture coordinates of the quad's corners
+	 */
+	public void addFace(int face, float x1, float y1, float z1, float x2,
+			float y2, float z2, float u1, float v1, float u2, float v2) {
+		addFace(face, x1, y1, z1, x2, y2, z2, u1, v1, u2, v2, 0f, 0f, 0f, 0f);
+	}
+
+	private void addFace(int face, float x1, float y1, float z1, float x2,
+			float y2, float z2, float u1, float v1, float u2, float v2,
+			float t1, float s1, float t2, float s2) {
+		ensureCapacity(4);
+		tile[0] = t1;
+		tile[1] = s1;
+		tile[2] = t2;
+		tile[3] = s2;
+
+		switch (face) {
+		case FACE_TOP:
+			vertex(x1, y2, z2, 0f, 1f, 0f, u1, v1);
+			vertex(x2, y2, z2, 0f, 1f, 0f, u2, v1);
+			vertex(x2, y2, z1, 0f, 1f, 0f, u2, v2);
+			vertex(x1, y2, z1, 0f, 1f, 0f, u1, v2);
+			break;
+		case FACE_FRONT:
+			vertex(x1, y1, z2, 0f, 0f, 1f, u1, v1);
+			vertex(x2, y1, z2, 0f, 0f, 1f, u2, v1);
+			vertex(x2, y2, z2, 0f, 0f, 1f, u2, v2);
+			vertex(x1, y2, z2, 0f, 0f, 1f, u1, v2);
+			break;
+		case FACE_LEFT:
+			vertex(x1, y1, z1, -1f, 0f, 0f, u1, v1);
+			vertex(x1, y1, z2, -1f, 0f, 0f, u2, v1);
+			vertex(x1, y2, z2, -1f, 0f, 0f, u2, v2);
+			vertex(x1, y2, z1, -1f, 0f, 0f, u1, v2);
+			break;
+		case FACE_RIGHT:
+			vertex(x2, y1, z2, 1f, 0f, 0f, u1, v1);
+			vertex(x2, y1, z1, 1f, 0f, 0f, u2, v1);
+			vertex(x2, y2, z1, 1f, 0f, 0f, u2, v2);
+			vertex(x2, y2, z2, 1f, 0f, 0f, u1, v2);
+			break;
+		case FACE_BACK:
+			vertex(x2, y1, z1, 0f, 0f, -1f, u1, v1);
+			vertex(x1, y1, z1, 0f, 0f, -1f, u2, v1);
+			vertex(x1, y2, z1, 0f, 0f, -1f, u2, v2);
+			vertex(x2, y2, z1, 0f, 0f, -1f, u1, v2);
+			break;
+		case FACE_BOTTOM:
+			vertex(x1, y1, z1, 0f, -1f, 0f, u1, v1);
+			vertex(x2, y1, z1, 0f, -1f, 0f, u2, v1);
+			vertex(x2, y1, z2, 0f, -1f, 0f, u2, v2);
+			vertex(x1, y1, z2, 0f, -1f, 0f, u1, v2);
+			break;
+		default:
+			throw new IllegalArgumentException("Invalid face: " + face);
+		}
+	}
+
+	private void vertex(float x, float y, float z, float nx, float ny,
+			float nz, float u, float v) {
+		floats.put(x).put(y).put(z);
+		floats.put(nx).put(ny).put(nz);
+		floats.put(u).put(v);
+		floats.put(tile);
+		vertices++;
+
+		minX = Math.min(minX, x);
+		minY = Math.min(minY, y);
+		minZ = Math.min(minZ, z);
+		maxX = Math.max(maxX, x);
+		maxY = Math.max(maxY, y);
+		maxZ = Math.max(maxZ, z);
+	}
+
+	/**
+	 * Grows the buffer (doubling) so that another count vertices will fit.
+	 */
+	private void ensureCapacity(int count) {
+		if (floats.remaining() >= count * FLOATS_PER_VERTEX) {
+			return;
+		}
+
+		int capacity = floats.capacity() / FLOATS_PER_VERTEX;
+		while (capacity < vertices + count) {
+			capacity *= 2;
+		}
+
+		FloatBuffer old = floats;
+		old.flip();
+		allocate(capacity);
+		floats.put(old);
+	}
+
+	private void allocate(int capacity) {
+		bytes = ByteBuffer.allocateDirect(Math.max(capacity, 4) * BYTES_PER_VERTEX)
+				.order(ByteOrder.nativeOrder());
+		floats = bytes.asFloatBuffer();
+	}
+}
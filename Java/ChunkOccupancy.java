@@ -0,0 +1,312 @@
+package engine;
+
+/**
+ * Which cells of a cubic chunk are solid, one bit per cell, with the exposed
+ * face masks of every cell worked out in bulk. Each row of cells along x is
+ * a single long, so the faces of a whole row are found with a few shifts and
+ * ANDs instead of one neighbour lookup per cell and face. Face bits are the
+ * same as <code>ChunkMesh</code>'s (and so Entity.getExposedFaces()).
+ * <p>
+ * Chunks are linked to their neighbours so faces on the chunk border are
+ * hidden by solid cells in the next chunk; a border with no neighbour linked
+ * counts as empty. Editing a cell only updates the rows holding the cell and
+ * its six neighbours, including rows in linked neighbour chunks. Makes no GL
+ * calls.
+ *
+ * @author Joel
+ */
+public final class ChunkOccupancy {
+	public static final int MAX_SIZE = 64;
+
+	// Offsets to the neighbouring cell for each face
+	private static final int[] DY = { 1, 0, 0, 0, 0, -1 };
+	private static final int[] DZ = { 0, 1, 0, 0, -1, 0 };
+
+	private static final int[] OPPOSITE = {
+		ChunkMesh.FACE_BOTTOM, ChunkMesh.FACE_BACK, ChunkMesh.FACE_RIGHT,
+		ChunkMesh.FACE_LEFT, ChunkMesh.FACE_FRONT, ChunkMesh.FACE_TOP };
+
+	private final int size;
+	private final long full;
+
+	// Solid cells, bit x of row y * size + z
+	private final long[] rows;
+
+	// Exposed faces, laid out as rows, for each face
+	private final long[][] faces = new long[6][];
+
+	// Neighbouring chunks by face, or null
+	private final ChunkOccupancy[] neighbours = new ChunkOccupancy[6];
+
+	/**
+	 * @param
+	 * 			size		Width, height and depth of the chunk in cells (up to 64)
+	 */
+	public ChunkOccupancy(int size) {
+		if (size < 1 || size > MAX_SIZE) {
+			throw new IllegalArgumentException("Chunk size must be 1 to " + MAX_SIZE + ": " + size);
+		}
+
+		this.size = size;
+		this.full = size == 64 ? -1L : (1L << size) - 1;
+		this.rows = new long[size * size];
+		for (int f = 0; f < 6; f++) {
+			faces[f] = new long[size * size];
+		}
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Links a neighbouring chunk on one side, and this chunk to it on the
+	 * other, then updates the faces along the shared border of both.
+	 * @param
+	 * 			face		Side of this chunk the neighbour is on (a ChunkMesh face)
+	 * 			neighbour	Neighbouring chunk of the same size, or null to unlink
+	 */
+	public void setNeighbour(int face, ChunkOccupancy neighbour) {
+		if (neighbour != null && neighbour.size != size) {
+			throw new IllegalArgumentException("Neighbour size " + neighbour.size + " != " + size);
+		}
+
+		ChunkOccupancy old = neighbours[face];
+		if (old != null && old.neighbours[OPPOSITE[face]] == this) {
+			old.neighbours[OPPOSITE[face]] = null;
+			old.updateBorder(OPPOSITE[face]);
+		}
+
+		neighbours[face] = neighbour;
+		if (neighbour != null) {
+			neighbour.neighbours[OPPOSITE[face]] = this;
+			neighbour.updateBorder(OPPOSITE[face]);
+		}
+		updateBorder(face);
+	}
+
+	public ChunkOccupancy getNeighbour(int face) {
+		return neighbours[face];
+	}
+
+	/**
+	 * Replaces every cell at once, then works out all faces. Use this when a
+	 * chunk is loaded or generated rather than setting cells one by one.
+	 * @param
+	 * 			solid		Rows of solid cells, bit x of element y * size + z
+	 */
+	public void setAll(long[] solid) {
+		for (int i = 0; i < rows.length; i++) {
+			rows[i] = solid[i] & full;
+		}
+		updateAll();
+
+		// Our border cells may hide or expose the neighbours' border faces
+		for (int f = 0; f < 6; f++) {
+			if (neighbours[f] != null) {
+				neighbours[f].updateBorder(OPPOSITE[f]);
+			}
+		}
+	}
+
+	/**
+	 * Empties the chunk.
+	 */
+	public void clear() {
+		setAll(new long[rows.length]);
+	}
+
+	public boolean isSolid(int x, int y, int z) {
+		return (rows[y * size + z] & (1L << x)) != 0;
+	}
+
+	/**
+	 * Sets whether a cell is solid, updating the faces of the cell and its
+	 * six neighbours.
+	 */
+	public void set(int x, int y, int z, boolean solid) {
+		int i = y * size + z;
+		long bit = 1L << x;
+
+		if (solid == ((rows[i] & bit) != 0)) {
+			return;
+		}
+
+		if (solid) {
+			rows[i] |= bit;
+		} else {
+			rows[i] &= ~bit;
+		}
+
+		// The cell's own row covers its left and right neighbours
+		updateRow(y, z);
+		updateRowAt(y + 1, z);
+		updateRowAt(y - 1, z);
+		updateRowAt(y, z + 1);
+		updateRowAt(y, z - 1);
+
+		// Neighbouring chunks' rows along x
+		if (x == 0 && neighbours[ChunkMesh.FACE_LEFT] != null) {
+			neighbours[ChunkMesh.FACE_LEFT].updateRow(y, z);
+		}
+		if (x == size - 1 && neighbours[ChunkMesh.FACE_RIGHT] != null) {
+			neighbours[ChunkMesh.FACE_RIGHT].updateRow(y, z);
+		}
+	}
+
+	/**
+	 * Gets a cell's exposed faces.
+	 * @return
+	 * 			Mask with bit 1 << face set for each exposed face, 0 if the
+	 * 			cell is empty
+	 */
+	public int getFaces(int x, int y, int z) {
+		int i = y * size + z;
+		int mask = 0;
+
+		for (int f = 0; f < 6; f++) {
+			mask |= (int) ((faces[f][i] >>> x) & 1) << f;
+		}
+
+		return mask;
+	}
+
+	/**
+	 * Gets the exposed cells for one face as rows, in the same layout as
+	 * setAll. The array is live, so must not be modified.
+	 */
+	public long[] getFaceRows(int face) {
+		return faces[face];
+	}
+
+	/**
+	 * Gets the row of solid cells along x at (y, z).
+	 */
+	public long getRow(int y, int z) {
+		return rows[y * size + z];
+	}
+
+	/**
+	 * Works out the faces of every row.
+	 */
+	private void updateAll() {
+		for (int y = 0; y < size; y++) {
+			for (int z = 0; z < size; z++) {
+				updateRow(y, z);
+			}
+		}
+	}
+
+	/**
+	 * Works out the faces of the rows along one side of the chunk.
+	 */
+	private void updateBorder(int face) {
+		switch (face) {
+		case ChunkMesh.FACE_TOP:
+		case ChunkMesh.FACE_BOTTOM: {
+			int y = face == ChunkMesh.FACE_TOP ? size - 1 : 0;
+			for (int z = 0; z < size; z++) {
+				updateRow(y, z);
+			}
+			break;
+		}
+		case ChunkMesh.FACE_FRONT:
+		case ChunkMesh.FACE_BACK: {
+			int z = face == ChunkMesh.FACE_FRONT ? size - 1 : 0;
+			for (int y = 0; y < size; y++) {
+				updateRow(y, z);
+			}
+			break;
+		}
+		default:
+			// Every row ends on the left and right sides
+			updateAll();
+			break;
+		}
+	}
+
+	/**
+	 * Works out the faces of a row that may be in a neighbouring chunk.
+	 */
+	private void updateRowAt(int y, int z) {
+		if (y >= size) {
+			if (neighbours[ChunkMesh.FACE_TOP] != null) {
+				neighbours[ChunkMesh.FACE_TOP].updateRow(0, z);
+			}
+		} else if (y < 0) {
+			if (neighbours[ChunkMesh.FACE_BOTTOM] != null) {
+				neighbours[ChunkMesh.FACE_BOTTOM].updateRow(size - 1, z);
+			}
+		} else if (z >= size) {
+			if (neighbours[ChunkMesh.FACE_FRONT] != null) {
+				neighbours[ChunkMesh.FACE_FRONT].updateRow(y, 0);
+			}
+		} else if (z < 0) {
+			if (neighbours[ChunkMesh.FACE_BACK] != null) {
+				neighbours[ChunkMesh.FACE_BACK].updateRow(y, size - 1);
+			}
+		} else {
+			updateRow(y, z);
+		}
+	}
+
+	/**
+	 * Works out the six face words of one row. A face is exposed where the
+	 * row is solid and the row (or bit) next to it on that side is not.
+	 */
+	private void updateRow(int y, int z) {
+		int i = y * size + z;
+		long row = rows[i];
+
+		// Along x: shift the row itself, bringing in the neighbours' end bits
+		long left = row << 1;
+		ChunkOccupancy n = neighbours[ChunkMesh.FACE_LEFT];
+		if (n != null) {
+			left |= n.rows[i] >>> (size - 1) & 1;
+		}
+
+		long right = row >>> 1;
+		n = neighbours[ChunkMesh.FACE_RIGHT];
+		if (n != null) {
+			right |= (n.rows[i] & 1) << (size - 1);
+		}
+
+		faces[ChunkMesh.FACE_LEFT][i] = row & ~left & full;
+		faces[ChunkMesh.FACE_RIGHT][i] = row & ~right & full;
+
+		// Along y and z: compare with the whole neighbouring row
+		faces[ChunkMesh.FACE_TOP][i] = row & ~neighbourRow(ChunkMesh.FACE_TOP, y, z);
+		faces[ChunkMesh.FACE_BOTTOM][i] = row & ~neighbourRow(ChunkMesh.FACE_BOTTOM, y, z);
+		faces[ChunkMesh.FACE_FRONT][i] = row & ~neighbourRow(ChunkMesh.FACE_FRONT, y, z);
+		faces[ChunkMesh.FACE_BACK][i] = row & ~neighbourRow(ChunkMesh.FACE_BACK, y, z);
+	}
+
+	/**
+	 * Gets the row next to (y, z) on the given side, from a neighbouring
+	 * chunk if it crosses the border.
+	 */
+	private long neighbourRow(int face, int y, int z) {
+		int ny = y + DY[face];
+		int nz = z + DZ[face];
+
+		if (ny >= 0 && ny < size && nz >= 0 && nz < size) {
+			return rows[ny * size + nz];
+		}
+
+		ChunkOccupancy n = neighbours[face];
+		if (n == null) {
+			return 0L;
+		}
+
+		return n.rows[((ny + size) % size) * size + (nz + size) % size];
+	}
+
+	@Override
+	public String toString() {
+		int count = 0;
+		for (long row : rows) {
+			count += Long.bitCount(row);
+		}
+		return "ChunkOccupancy[" + size + "^3, " + count + " solid]";
+	}
+}
@@ -0,0 +1,131 @@
+package engine;
+
+import java.util.Arrays;
+
+/**
+ * The boxes drawn into one (Graphic, chunk) pair, recorded on the render thread
+ * so the chunk's mesh can be built on a worker thread. Once submitted to a
+ * <code>ChunkBuilder</code> a snapshot is not modified until it is released.
+ *
+ * @author Joel
+ */
+public final class ChunkSnapshot {
+	// What is being built
+	Graphic graphic;
+	int chunk;
+	int generation;
+	int texWidth;
+	float[] uvTransform;
+	boolean greedy;
+
+	// Recorded boxes
+	private int count;
+	private float[] positions = new float[3 * 256];
+	private int[] faces = new int[256];
+	private int[] tiles = new int[6 * 256];
+
+	// Built mesh, set by the worker
+	ChunkMesh mesh;
+
+	/**
+	 * Prepares the snapshot to record a new chunk.
+	 */
+	void reset(Graphic graphic, int chunk, int generation, boolean greedy, float[] uvTransform) {
+		this.graphic = graphic;
+		this.chunk = chunk;
+		this.generation = generation;
+		this.texWidth = graphic.getWidth();
+		this.uvTransform = uvTransform;
+		this.greedy = greedy;
+		this.count = 0;
+		this.mesh = null;
+	}
+
+	public Graphic getGraphic() {
+		return graphic;
+	}
+
+	public int getChunk() {
+		return chunk;
+	}
+
+	public int getGeneration() {
+		return generation;
+	}
+
+	public boolean isGreedy() {
+		return greedy;
+	}
+
+	public int getBoxCount() {
+		return count;
+	}
+
+	public ChunkMesh getMesh() {
+		return mesh;
+	}
+
+	/**
+	 * Records a unit box. Takes the same arguments as ChunkMesh.addBox.
+	 */
+	public void addBox(float x, float y, float z, int exposedFaces,
+			int top, int front, int left, int right, int back, int bottom) {
+		if (exposedFaces == 0) {
+			return;
+		}
+
+		if (count == faces.length) {
+			positions = Arrays.copyOf(positions, positions.length * 2);
+			faces = Arrays.copyOf(faces, faces.length * 2);
+			tiles = Arrays.copyOf(tiles, tiles.length * 2);
+		}
+
+		positions[count * 3 + 0] = x;
+		positions[count * 3 + 1] = y;
+		positions[count * 3 + 2] = z;
+		faces[count] = exposedFaces;
+		tiles[count * 6 + ChunkMesh.FACE_TOP] = top;
+		tiles[count * 6 + ChunkMesh.FACE_FRONT] = front;
+		tiles[count * 6 + ChunkMesh.FACE_LEFT] = left;
+		tiles[count * 6 + ChunkMesh.FACE_RIGHT] = right;
+		tiles[count * 6 + ChunkMesh.FACE_BACK] = back;
+		tiles[count * 6 + ChunkMesh.FACE_BOTTOM] = bottom;
+		count++;
+	}
+
+	/**
+	 * Builds the recorded boxes into a mesh.
+	 * @param
+	 * 			mesh		Mesh to build into (cleared first)
+	 * 			greedyMesher	Greedy mesher to use if the snapshot is greedy
+	 */
+	public void build(ChunkMesh mesh, GreedyMesher greedyMesher) {
+		mesh.clear();
+		mesh.setUVTransform(uvTransform);
+
+		if (greedy) {
+			greedyMesher.clear();
+		}
+
+		for (int i = 0; i < count; i++) {
+			float x = positions[i * 3 + 0];
+			float y = positions[i * 3 + 1];
+			float z = positions[i * 3 + 2];
+			int t = i * 6;
+
+			if (greedy) {
+				greedyMesher.addBox(x, y, z, faces[i],
+						tiles[t + 0], tiles[t + 1], tiles[t + 2],
+						tiles[t + 3], tiles[t + 4], tiles[t + 5]);
+			} else {
+				mesh.addBox(x, y, z, faces[i], texWidth,
+						tiles[t + 0], tiles[t + 1], tiles[t + 2],
+						tiles[t + 3], tiles[t + 4], tiles[t + 5]);
+			}
+		}
+
+		if (greedy) {
+			greedyMesher.build(mesh, texWidth);
+		}
+	}
+}
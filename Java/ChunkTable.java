@@ -0,0 +1,143 @@
+package engine;
+
+import java.util.Arrays;
+
+/**
+ * Sparse table of a graphic's non-empty chunks. Maps chunk indices to dense
+ * slots with an <code>IntIntMap</code>, and keeps each slot's vertex buffer,
+ * vertex count, last drawn frame and bounding box in parallel arrays so the
+ * draw loop can walk slots 0 to size() without touching empty chunks. Makes
+ * no GL calls.
+ *
+ * @author Joel
+ */
+public final class ChunkTable {
+	// Vertex counts of chunks whose geometry was evicted from the GPU, before
+	// and after a rebuild has been asked for
+	public static final int EVICTED = 0;
+	public static final int RELOADING = -1;
+
+	// Chunk index to slot
+	private final IntIntMap slotMap;
+
+	// Slots
+	private int size;
+	private int[] chunks;
+	private int[] buffers;
+	private int[] vertices;
+	private int[] frames;
+	private float[] bounds;
+
+	public ChunkTable() {
+		this(16);
+	}
+
+	public ChunkTable(int capacity) {
+		int n = Math.max(capacity, 4);
+		slotMap = new IntIntMap(n);
+
+		chunks = new int[n];
+		buffers = new int[n];
+		vertices = new int[n];
+		frames = new int[n];
+		bounds = new float[n * 6];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Gets the slot of a chunk.
+	 * @return
+	 * 			Slot index, or -1 if the chunk has no slot
+	 */
+	public int find(int chunk) {
+		return slotMap.get(chunk, -1);
+	}
+
+	/**
+	 * Adds a slot for a chunk that does not have one.
+	 * @return
+	 * 			The new slot
+	 */
+	public int add(int chunk, int buffer) {
+		if (size == chunks.length) {
+			int n = size * 2;
+			chunks = Arrays.copyOf(chunks, n);
+			buffers = Arrays.copyOf(buffers, n);
+			vertices = Arrays.copyOf(vertices, n);
+			frames = Arrays.copyOf(frames, n);
+			bounds = Arrays.copyOf(bounds, n * 6);
+		}
+
+		int slot = size++;
+		chunks[slot] = chunk;
+		buffers[slot] = buffer;
+		vertices[slot] = 0;
+		frames[slot] = 0;
+		slotMap.put(chunk, slot);
+		return slot;
+	}
+
+	/**
+	 * Removes a chunk's slot, moving the last slot into its place.
+	 * @return
+	 * 			The buffer the chunk was using, or 0 if it had no slot
+	 */
+	public int remove(int chunk) {
+		int slot = slotMap.remove(chunk, -1);
+		if (slot < 0) {
+			return 0;
+		}
+
+		int buffer = buffers[slot];
+
+		// Fill the hole with the last slot
+		int last = --size;
+		if (slot != last) {
+			chunks[slot] = chunks[last];
+			buffers[slot] = buffers[last];
+			vertices[slot] = vertices[last];
+			frames[slot] = frames[last];
+			System.arraycopy(bounds, last * 6, bounds, slot * 6, 6);
+			slotMap.put(chunks[slot], slot);
+		}
+
+		return buffer;
+	}
+
+	public int getChunk(int slot) {
+		return chunks[slot];
+	}
+
+	public int getBuffer(int slot) {
+		return buffers[slot];
+	}
+
+	public int getVertexCount(int slot) {
+		return vertices[slot];
+	}
+
+	public void setVertexCount(int slot, int count) {
+		vertices[slot] = count;
+	}
+
+	/**
+	 * Gets the frame a slot was last drawn or uploaded in.
+	 */
+	public int getFrame(int slot) {
+		return frames[slot];
+	}
+
+	public void setFrame(int slot, int frame) {
+		frames[slot] = frame;
+	}
+
+	/**
+	 * Gets the bounding boxes of all slots, six floats per slot.
+	 */
+	public float[] getBounds() {
+		return bounds;
+	}
+}
@@ -0,0 +1,544 @@
+package com.edutect.up.api.jackson;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cirrusaustralia.cub.ejb.UpEntity;
+import com.cirrusaustralia.cub.ejb.enums.DETAIL;
+import com.cirrusaustralia.up.ejb.sessions.ApiSessionRemote;
+
+/**
+ * Cache of entities found through <code>ApiSessionRemote.find</code>, shared
+ * between requests so reference entities aren't fetched again for every
+ * document. Bounded by total weight (one per entity unless a
+ * <code>Weigher</code> says otherwise), evicting the least recently used
+ * first. Entries expire after a maximum age, and should be invalidated once a
+ * save of their entity commits (see <code>invalidateSaved</code>).
+ * <p>
+ * Entities are kept serialized and every find returns a fresh copy, so a
+ * request can update what it found without other requests seeing it.
+ * Entities that aren't <code>Serializable</code> are never cached.
+ * <p>
+ * The cache is split into segments, each locked on its own, so concurrent
+ * requests rarely wait on each other. Remote finds are made outside any lock;
+ * a find that races an invalidation is not cached.
+ *
+ * @author Joel
+ */
+public class EntityCache implements EntityCacheMBean {
+
+	/**
+	 * Works out how much of the cache an entity takes up.
+	 */
+	public interface Weigher {
+		int weigh(UpEntity entity);
+	}
+
+	private static final Logger log = LoggerFactory.getLogger(EntityCache.class);
+
+	private static final int SEGMENTS = 16;
+
+	private static final EntityCache instance = createInstance();
+
+	private final Segment[] segments = new Segment[SEGMENTS];
+	private final long maxWeight;
+	private volatile long maxAgeMillis;
+	private volatile Weigher weigher;
+
+	// Name registered under, or null if not registered
+	private ObjectName registeredName;
+
+	// Classes that are never cached, and the decision for each class seen
+	private final Map<Class<?>, Boolean> excluded = new ConcurrentHashMap<Class<?>, Boolean>();
+	private final ConcurrentMap<Class<?>, Boolean> cacheable = new ConcurrentHashMap<Class<?>, Boolean>();
+
+	// Counts
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+
+	/**
+	 * @param maxWeight
+	 *            Most total weight to hold
+	 * @param maxAgeMillis
+	 *            How long an entity is kept after it is found
+	 */
+	public EntityCache(long maxWeight, long maxAgeMillis) {
+		this.maxWeight = maxWeight;
+		this.maxAgeMillis = maxAgeMillis;
+
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new Segment(Math.max(1, maxWeight / SEGMENTS));
+		}
+	}
+
+	private static EntityCache createInstance() {
+		return new EntityCache(10000, 10 * 60 * 1000L);
+	}
+
+	/**
+	 * Gets the cache shared by all deserializers. It is not registered with
+	 * the MBean server until <code>register</code> is called.
+	 */
+	public static EntityCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Registers the cache with the platform MBean server. Anything already
+	 * registered under the name (e.g. by another deployment in the same JVM)
+	 * is left alone and this cache is not registered.
+	 *
+	 * @param name
+	 *            Object name, e.g. "up:type=EntityCache"
+	 */
+	public synchronized void register(String name) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(name);
+
+			if (server.isRegistered(objectName)) {
+				log.warn("Not registering entity cache: " + name
+						+ " is already registered");
+				return;
+			}
+			server.registerMBean(this, objectName);
+			registeredName = objectName;
+		} catch (JMException e) {
+			log.error("Error registering entity cache", e);
+		}
+	}
+
+	/**
+	 * Unregisters the cache from the platform MBean server, if
+	 * <code>register</code> registered it.
+	 */
+	public synchronized void unregister() {
+		if (registeredName == null) {
+			return;
+		}
+
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+					registeredName);
+		} catch (JMException e) {
+			log.error("Error unregistering entity cache", e);
+		}
+		registeredName = null;
+	}
+
+	/**
+	 * Sets how entities are weighed, or null to weigh each as one. Only
+	 * affects entities cached afterwards.
+	 */
+	public void setWeigher(Weigher weigher) {
+		this.weigher = weigher;
+	}
+
+	/**
+	 * Stops a class (and its subclasses) from being cached, dropping any of
+	 * its entities already cached.
+	 */
+	public void exclude(Class<? extends UpEntity> type) {
+		excluded.put(type, Boolean.TRUE);
+		cacheable.clear();
+		invalidateAll(type);
+	}
+
+	/**
+	 * Whether entities of a class may be cached.
+	 */
+	public boolean isCacheable(Class<?> type) {
+		Boolean result = cacheable.get(type);
+		if (result == null) {
+			result = Boolean.TRUE;
+			for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+				if (excluded.containsKey(c)) {
+					result = Boolean.FALSE;
+					break;
+				}
+			}
+			cacheable.put(type, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Finds an entity, from the cache if it is there and otherwise through
+	 * the session.
+	 *
+	 * @return The entity, or null if there is none with the ID. The caller
+	 *         gets its own copy, and may change it.
+	 */
+	public <T extends UpEntity> T find(ApiSessionRemote session,
+			Class<T> type, long id) {
+		if (!isCacheable(type)) {
+			return session.find(type, id, DETAIL.NONE);
+		}
+
+		Key key = new Key(type, id);
+		Segment segment = segmentFor(key);
+		long now = System.currentTimeMillis();
+		long generation;
+		byte[] state = null;
+
+		synchronized (segment) {
+			Entry entry = segment.map.get(key);
+			if (entry != null) {
+				if (now - entry.loaded <= maxAgeMillis) {
+					state = entry.state;
+				} else {
+					// Too old - drop it
+					segment.remove(key);
+				}
+			}
+			generation = segment.generation;
+		}
+
+		// Copy outside the lock
+		if (state != null) {
+			T entity = read(type, state);
+			if (entity != null) {
+				hits.incrementAndGet();
+				return entity;
+			}
+		}
+
+		misses.incrementAndGet();
+		T entity = session.find(type, id, DETAIL.NONE);
+
+		// Keep its state before the caller can change it. A failure here
+		// only costs the caching, never the find
+		try {
+			state = entity != null ? write(entity) : null;
+			if (state != null) {
+				Weigher w = weigher;
+				int weight = w != null ? Math.max(1, w.weigh(entity)) : 1;
+
+				synchronized (segment) {
+					// Don't cache it if anything was invalidated while finding it
+					if (segment.generation == generation) {
+						segment.put(key, new Entry(state, weight, now));
+					}
+				}
+			}
+		} catch (RuntimeException e) {
+			log.warn("Not caching " + type.getName() + " " + id, e);
+		}
+
+		return entity;
+	}
+
+	/**
+	 * Serializes an entity for the cache.
+	 *
+	 * @return The entity's state, or null if it can't be serialized
+	 */
+	private static byte[] write(UpEntity entity) {
+		if (!(entity instanceof Serializable)) {
+			return null;
+		}
+
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(entity);
+			out.close();
+			return bytes.toByteArray();
+		} catch (Exception e) {
+			log.debug("Not caching " + entity.getClass().getName() + ": " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Makes a new copy of a cached entity.
+	 *
+	 * @return The copy, or null if it couldn't be read back
+	 */
+	private static <T extends UpEntity> T read(Class<T> type, byte[] state) {
+		try {
+			ObjectInputStream in = new EntityInputStream(
+					new ByteArrayInputStream(state), type.getClassLoader());
+			try {
+				return type.cast(in.readObject());
+			} finally {
+				in.close();
+			}
+		} catch (Exception e) {
+			log.warn("Error copying cached " + type.getName(), e);
+			return null;
+		}
+	}
+
+	/**
+	 * Drops an entity from the cache, e.g. because it is being saved.
+	 */
+	public void invalidate(Class<?> type, long id) {
+		Key key = new Key(type, id);
+		Segment segment = segmentFor(key);
+
+		synchronized (segment) {
+			segment.generation++;
+			if (segment.remove(key)) {
+				invalidations.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Drops the entities a save has just committed, so later finds see what
+	 * was saved. Call once the save succeeds, with the change sets it saved
+	 * (new entities were never cached, so they are skipped).
+	 */
+	public void invalidateSaved(Collection<ChangeSet> saved) {
+		for (ChangeSet changeSet : saved) {
+			if (!changeSet.isNew()) {
+				UpEntity entity = changeSet.getEntity();
+				invalidate(entity.getClass(), entity.getId());
+			}
+		}
+	}
+
+	/**
+	 * Drops every entity of a class (and its subclasses) from the cache.
+	 */
+	public void invalidateAll(Class<?> type) {
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				segment.generation++;
+				Iterator<Map.Entry<Key, Entry>> it = segment.map.entrySet()
+						.iterator();
+				while (it.hasNext()) {
+					Map.Entry<Key, Entry> e = it.next();
+					if (type.isAssignableFrom(e.getKey().type)) {
+						segment.weight -= e.getValue().weight;
+						it.remove();
+						invalidations.incrementAndGet();
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public void clear() {
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				segment.generation++;
+				segment.map.clear();
+				segment.weight = 0;
+			}
+		}
+	}
+
+	private Segment segmentFor(Key key) {
+		int h = key.hashCode();
+		h ^= h >>> 16;
+		return segments[h & (SEGMENTS - 1)];
+	}
+
+	@Override
+	public long getHits() {
+		return hits.get();
+	}
+
+	@Override
+	public long getMisses() {
+		return misses.get();
+	}
+
+	@Override
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	@Override
+	public long getInvalidations() {
+		return invalidations.get();
+	}
+
+	@Override
+	public double getHitRatio() {
+		long h = hits.get();
+		long total = h + misses.get();
+		return total > 0 ? (double) h / total : 0;
+	}
+
+	@Override
+	public int getSize() {
+		int size = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.map.size();
+			}
+		}
+		return size;
+	}
+
+	@Override
+	public long getWeight() {
+		long weight = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				weight += segment.weight;
+			}
+		}
+		return weight;
+	}
+
+	@Override
+	public long getMaxWeight() {
+		return maxWeight;
+	}
+
+	@Override
+	public long getMaxAgeMillis() {
+		return maxAgeMillis;
+	}
+
+	@Override
+	public void setMaxAgeMillis(long maxAgeMillis) {
+		this.maxAgeMillis = maxAgeMillis;
+	}
+
+	@Override
+	public void resetCounts() {
+		hits.set(0);
+		misses.set(0);
+		evictions.set(0);
+		invalidations.set(0);
+	}
+
+	/**
+	 * Part of the cache, in least recently used order. Guarded by its own
+	 * lock.
+	 */
+	private final class Segment {
+		final LinkedHashMap<Key, Entry> map = new LinkedHashMap<Key, Entry>(
+				16, 0.75f, true);
+		final long maxWeight;
+		long weight;
+
+		// Bumped on every invalidation
+		long generation;
+
+		Segment(long maxWeight) {
+			this.maxWeight = maxWeight;
+		}
+
+		void put(Key key, Entry entry) {
+			Entry old = map.put(key, entry);
+			if (old != null) {
+				weight -= old.weight;
+			}
+			weight += entry.weight;
+
+			// Evict least recently used until back within our weight
+			Iterator<Entry> it = map.values().iterator();
+			while (weight > maxWeight && it.hasNext()) {
+				Entry eldest = it.next();
+				if (eldest == entry) {
+					break;
+				}
+				weight -= eldest.weight;
+				it.remove();
+				evictions.incrementAndGet();
+			}
+		}
+
+		boolean remove(Key key) {
+			Entry old = map.remove(key);
+			if (old != null) {
+				weight -= old.weight;
+				return true;
+			}
+			return false;
+		}
+	}
+
+	private static final class Entry {
+		// Serialized entity, never changed once cached
+		final byte[] state;
+		final int weight;
+		final long loaded;
+
+		Entry(byte[] state, int weight, long loaded) {
+			this.state = state;
+			this.weight = weight;
+			this.loaded = loaded;
+		}
+	}
+
+	/**
+	 * Reads cached entities with their own class's loader, which may not be
+	 * the one that loaded this class.
+	 */
+	private static final class EntityInputStream extends ObjectInputStream {
+		private final ClassLoader loader;
+
+		EntityInputStream(InputStream in, ClassLoader loader) throws IOException {
+			super(in);
+			this.loader = loader;
+		}
+
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass desc)
+				throws IOException, ClassNotFoundException {
+			if (loader != null) {
+				try {
+					return Class.forName(desc.getName(), false, loader);
+				} catch (ClassNotFoundException e) {
+					// Fall back to the default
+				}
+			}
+			return super.resolveClass(desc);
+		}
+	}
+
+	private static final class Key {
+		final Class<?> type;
+		final long id;
+
+		Key(Class<?> type, long id) {
+			this.type = type;
+			this.id = id;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * type.hashCode() + (int) (id ^ (id >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key) o;
+			return k.type == type && k.id == id;
+		}
+	}
+}
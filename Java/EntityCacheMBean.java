@@ -0,0 +1,38 @@
+package com.edutect.up.api.jackson;
+
+/**
+ * JMX view of <code>EntityCache</code>.
+ *
+ * @author Joel
+ */
+public interface EntityCacheMBean {
+	public long getHits();
+
+	public long getMisses();
+
+	public long getEvictions();
+
+	public long getInvalidations();
+
+	public double getHitRatio();
+
+	public int getSize();
+
+	public long getWeight();
+
+	public long getMaxWeight();
+
+	public long getMaxAgeMillis();
+
+	public void setMaxAgeMillis(long maxAgeMillis);
+
+	/**
+	 * Empties the cache.
+	 */
+	public void clear();
+
+	/**
+	 * Zeroes the hit, miss, eviction and invalidation counts.
+	 */
+	public void resetCounts();
+}
@@ -0,0 +1,175 @@
+package com.edutect.up.api.jackson;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.cirrusaustralia.cub.ejb.UpEntity;
+import com.fasterxml.jackson.databind.JavaType;
+
+/**
+ * Finds the managed entities for a whole document in a few bulk lookups,
+ * instead of one remote find per entity. The document is deserialized
+ * twice: the first pass only collects the class and ID of each entity
+ * (see <code>isCollecting</code>), the collected IDs are then resolved with
+ * <code>resolve</code>, and the second pass takes its old objects from here.
+ * <code>read</code> runs the whole sequence.
+ *
+ * @author Joel
+ */
+public class EntityPrefetch {
+
+	/**
+	 * Bulk lookup of entities by ID.
+	 */
+	public interface Finder {
+		/**
+		 * Finds the entities of a class with the given IDs. IDs with no
+		 * entity are left out of the result.
+		 */
+		List<? extends UpEntity> findAll(Class<? extends UpEntity> type,
+				long[] ids);
+	}
+
+	// Most IDs to ask for in one lookup
+	private static final int DEFAULT_BATCH_SIZE = 500;
+
+	private final int batchSize;
+	private boolean collecting = true;
+
+	// IDs collected but not yet resolved, by class (the values are unused)
+	private final Map<Class<? extends UpEntity>, LongObjectMap<Void>> pending = new LinkedHashMap<Class<? extends UpEntity>, LongObjectMap<Void>>();
+
+	// Resolved IDs by class (mapped to null where nothing was found)
+	private final Map<Class<? extends UpEntity>, LongObjectMap<UpEntity>> fetched = new HashMap<Class<? extends UpEntity>, LongObjectMap<UpEntity>>();
+
+	private int lookups;
+
+	public EntityPrefetch() {
+		this(DEFAULT_BATCH_SIZE);
+	}
+
+	public EntityPrefetch(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Whether this is the collecting pass, in which entities are only
+	 * recorded and not looked up or updated.
+	 */
+	public boolean isCollecting() {
+		return collecting;
+	}
+
+	/**
+	 * Records an entity to look up.
+	 */
+	public void add(Class<? extends UpEntity> type, long id) {
+		if (id == 0 || isFetched(type, id)) {
+			return;
+		}
+
+		LongObjectMap<Void> ids = pending.get(type);
+		if (ids == null) {
+			ids = new LongObjectMap<Void>();
+			pending.put(type, ids);
+		}
+		ids.put(id, null);
+	}
+
+	/**
+	 * Looks up every collected entity, a batch of IDs per class at a time,
+	 * and ends the collecting pass.
+	 */
+	public void resolve(Finder finder) {
+		for (Map.Entry<Class<? extends UpEntity>, LongObjectMap<Void>> entry : pending
+				.entrySet()) {
+			Class<? extends UpEntity> type = entry.getKey();
+			long[] ids = entry.getValue().keys();
+
+			LongObjectMap<UpEntity> found = fetched.get(type);
+			if (found == null) {
+				found = new LongObjectMap<UpEntity>(ids.length);
+				fetched.put(type, found);
+			}
+
+			for (int start = 0; start < ids.length; start += batchSize) {
+				long[] batch = Arrays.copyOfRange(ids, start,
+						Math.min(start + batchSize, ids.length));
+				for (long id : batch) {
+					found.put(id, null);
+				}
+
+				for (UpEntity entity : finder.findAll(type, batch)) {
+					found.put(entity.getId(), entity);
+				}
+				lookups++;
+			}
+		}
+
+		pending.clear();
+		collecting = false;
+	}
+
+	/**
+	 * Deserializes a document with this prefetch: collects its entities,
+	 * resolves them with the finder, then deserializes it again taking old
+	 * objects from the lookups. Entities the finder doesn't return are
+	 * treated as not found rather than looked up one at a time. The second
+	 * pass's object maps are merged into the mapper's, and its changes are
+	 * tracked by the mapper's tracker.
+	 *
+	 * @param mapper
+	 *            Mapper to deserialize with
+	 * @param finder
+	 *            Bulk lookup for the collected IDs
+	 * @param json
+	 *            The document
+	 * @param type
+	 *            Type of the document
+	 * @return The deserialized document
+	 */
+	public <T> T read(UpObjectMapper mapper, Finder finder, byte[] json,
+			JavaType type) throws IOException {
+		if (!collecting) {
+			throw new IllegalStateException("Prefetch already resolved");
+		}
+
+		new UpReadState(this, null).read(mapper, json, type);
+		resolve(finder);
+
+		UpReadState state = new UpReadState(this, mapper.getChanges());
+		T value = state.read(mapper, json, type);
+		mapper.oldObjectMap.putAll(state.oldObjectMap);
+		mapper.newObjectMap.putAll(state.newObjectMap);
+		return value;
+	}
+
+	/**
+	 * Whether an entity has been looked up (found or not).
+	 */
+	public boolean isFetched(Class<?> type, long id) {
+		LongObjectMap<UpEntity> found = fetched.get(type);
+		return found != null && found.containsKey(id);
+	}
+
+	/**
+	 * Gets an entity that has been looked up.
+	 *
+	 * @return The entity, or null if it wasn't found or hasn't been looked up
+	 */
+	public UpEntity get(Class<?> type, long id) {
+		LongObjectMap<UpEntity> found = fetched.get(type);
+		return found != null ? found.get(id) : null;
+	}
+
+	/**
+	 * Gets the number of bulk lookups made.
+	 */
+	public int getLookups() {
+		return lookups;
+	}
+}
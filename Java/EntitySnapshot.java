@@ -0,0 +1,134 @@
+package engine;
+
+import java.util.Arrays;
+
+/**
+ * The state of every drawn entity at one simulation tick: its render slot,
+ * chunk, and position at this tick and the one before, so the renderer can
+ * interpolate between them. Written by the simulation thread and then
+ * handed to the renderer through a <code>SnapshotExchange</code>, after
+ * which it is not modified until it is handed back. Arrays are reused
+ * between ticks, so filling a snapshot does not allocate once it is large
+ * enough.
+ *
+ * @author Joel
+ */
+public final class EntitySnapshot {
+	// When the tick was taken and how long a tick is, in System.nanoTime() terms
+	private long tickTime;
+	private long tickLength;
+
+	// Entities
+	private int count;
+	private int[] slots;
+	private int[] chunks;
+	private float[] positions;
+
+	public EntitySnapshot(int capacity) {
+		int n = Math.max(capacity, 16);
+		slots = new int[n];
+		chunks = new int[n];
+		positions = new float[n * 6];
+	}
+
+	/**
+	 * Empties the snapshot to record a new tick.
+	 * @param
+	 * 			tickTime	System.nanoTime() of the tick
+	 * 			tickLength	Nanoseconds between ticks
+	 */
+	public void begin(long tickTime, long tickLength) {
+		this.tickTime = tickTime;
+		this.tickLength = tickLength;
+		this.count = 0;
+	}
+
+	/**
+	 * Adds an entity's state.
+	 * @param
+	 * 			slot		Render slot from GraphicEngine.register
+	 * 			chunk		Chunk the entity is in at this tick
+	 * 			prevX		Position at the previous tick
+	 * 			x			Position at this tick
+	 */
+	public void add(int slot, int chunk, float prevX, float prevY, float prevZ, float x, float y, float z) {
+		if (count == slots.length) {
+			slots = Arrays.copyOf(slots, count * 2);
+			chunks = Arrays.copyOf(chunks, count * 2);
+			positions = Arrays.copyOf(positions, count * 2 * 6);
+		}
+
+		int p = count * 6;
+		slots[count] = slot;
+		chunks[count] = chunk;
+		positions[p + 0] = prevX;
+		positions[p + 1] = prevY;
+		positions[p + 2] = prevZ;
+		positions[p + 3] = x;
+		positions[p + 4] = y;
+		positions[p + 5] = z;
+		count++;
+	}
+
+	public long getTickTime() {
+		return tickTime;
+	}
+
+	public long getTickLength() {
+		return tickLength;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public int getSlot(int i) {
+		return slots[i];
+	}
+
+	public int getChunk(int i) {
+		return chunks[i];
+	}
+
+	public float getX(int i) {
+		return positions[i * 6 + 3];
+	}
+
+	public float getY(int i) {
+		return positions[i * 6 + 4];
+	}
+
+	public float getZ(int i) {
+		return positions[i * 6 + 5];
+	}
+
+	/**
+	 * Whether an entity moved between the previous tick and this one.
+	 */
+	public boolean isMoving(int i) {
+		int p = i * 6;
+		return positions[p] != positions[p + 3]
+				|| positions[p + 1] != positions[p + 4]
+				|| positions[p + 2] != positions[p + 5];
+	}
+
+	/**
+	 * Gets how far the given time is from this tick towards the next, from
+	 * 0 to 1.
+	 */
+	public float getAlpha(long now) {
+		if (tickLength <= 0) {
+			return 1f;
+		}
+		return Math.max(0f, Math.min(1f, (float) (now - tickTime) / tickLength));
+	}
+
+	/**
+	 * Gets an entity's position between the previous tick (alpha 0) and this
+	 * one (alpha 1), on one axis (0 to 2).
+	 */
+	public float interpolate(int i, int axis, float alpha) {
+		int p = i * 6 + axis;
+		return positions[p] + (positions[p + 3] - positions[p]) * alpha;
+	}
+}
@@ -0,0 +1,112 @@
+package engine;
+
+/**
+ * View frustum extracted from the projection and modelview matrices, used to
+ * cull chunks by their bounding boxes. Matrices are column-major, as returned
+ * by glGetFloat. Makes no GL calls.
+ *
+ * @author Joel
+ */
+public final class Frustum {
+	// Planes as (a, b, c, d), normals pointing inwards: left, right, bottom, top, near, far
+	private final float[] planes = new float[6 * 4];
+
+	// Combined projection * modelview matrix
+	private final float[] clip = new float[16];
+
+	// Camera position in world space
+	private float eyeX, eyeY, eyeZ;
+
+	/**
+	 * Updates the frustum from the current matrices.
+	 * @param
+	 * 			projection	Column-major projection matrix
+	 * 			modelview	Column-major modelview matrix
+	 */
+	public void set(float[] projection, float[] modelview) {
+		// clip = projection * modelview
+		for (int col = 0; col < 4; col++) {
+			for (int row = 0; row < 4; row++) {
+				clip[col * 4 + row] =
+						projection[0 * 4 + row] * modelview[col * 4 + 0]
+						+ projection[1 * 4 + row] * modelview[col * 4 + 1]
+						+ projection[2 * 4 + row] * modelview[col * 4 + 2]
+						+ projection[3 * 4 + row] * modelview[col * 4 + 3];
+			}
+		}
+
+		// Planes are the 4th row plus or minus each of the other rows
+		plane(0, 0, 1f);
+		plane(1, 0, -1f);
+		plane(2, 1, 1f);
+		plane(3, 1, -1f);
+		plane(4, 2, 1f);
+		plane(5, 2, -1f);
+
+		// Eye is the inverse rotation applied to the negated translation
+		float tx = modelview[12], ty = modelview[13], tz = modelview[14];
+		eyeX = -(modelview[0] * tx + modelview[1] * ty + modelview[2] * tz);
+		eyeY = -(modelview[4] * tx + modelview[5] * ty + modelview[6] * tz);
+		eyeZ = -(modelview[8] * tx + modelview[9] * ty + modelview[10] * tz);
+	}
+
+	private void plane(int plane, int row, float sign) {
+		float a = clip[3] + sign * clip[row];
+		float b = clip[7] + sign * clip[4 + row];
+		float c = clip[11] + sign * clip[8 + row];
+		float d = clip[15] + sign * clip[12 + row];
+		float length = (float) Math.sqrt(a * a + b * b + c * c);
+
+		planes[plane * 4 + 0] = a / length;
+		planes[plane * 4 + 1] = b / length;
+		planes[plane * 4 + 2] = c / length;
+		planes[plane * 4 + 3] = d / length;
+	}
+
+	/**
+	 * Tests whether an axis-aligned box is at least partly inside the frustum.
+	 */
+	public boolean intersects(float minX, float minY, float minZ,
+			float maxX, float maxY, float maxZ) {
+		for (int i = 0; i < 6; i++) {
+			float a = planes[i * 4 + 0];
+			float b = planes[i * 4 + 1];
+			float c = planes[i * 4 + 2];
+			float d = planes[i * 4 + 3];
+
+			// Test the corner furthest along the plane's normal
+			float x = a > 0 ? maxX : minX;
+			float y = b > 0 ? maxY : minY;
+			float z = c > 0 ? maxZ : minZ;
+
+			if (a * x + b * y + c * z + d < 0) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Gets the squared distance from the camera to the nearest point of a box.
+	 */
+	public float distanceSquared(float minX, float minY, float minZ,
+			float maxX, float maxY, float maxZ) {
+		float dx = Math.max(Math.max(minX - eyeX, eyeX - maxX), 0f);
+		float dy = Math.max(Math.max(minY - eyeY, eyeY - maxY), 0f);
+		float dz = Math.max(Math.max(minZ - eyeZ, eyeZ - maxZ), 0f);
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	public float getEyeX() {
+		return eyeX;
+	}
+
+	public float getEyeY() {
+		return eyeY;
+	}
+
+	public float getEyeZ() {
+		return eyeZ;
+	}
+}
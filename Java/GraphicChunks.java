@@ -0,0 +1,93 @@
+package engine;
+
+import java.util.BitSet;
+
+/**
+ * Per-graphic chunk state kept by <code>GraphicEngine</code>: which entities
+ * are in which chunk, which chunks are dirty, the generation of each chunk's
+ * latest rebuild, and the vertex buffers of its non-empty chunks.
+ *
+ * @author Joel
+ */
+final class GraphicChunks {
+	final Graphic graphic;
+
+	// Whether this is a texture graphic (drawn before function graphics)
+	final boolean texture;
+
+	// Texture the graphic draws from (0 if none), and its UVs' transform
+	// into that texture when it is an atlas page (null if not)
+	final int textureId;
+	final float[] uvTransform;
+
+	// File to reload the texture from once evicted (null if it can't be),
+	// its size on the GPU, and the frame it was last drawn in
+	String filename;
+	int textureBytes;
+	boolean textureEvicted;
+	int textureFrame;
+
+	// Position in the render queue: texture graphics first, then grouped by
+	// program, function and texture so graphics sharing state are drawn
+	// together (see GraphicEngine.updateSortKey)
+	long sortKey;
+
+	// Shared mesh and per-entity offsets, for graphics whose entities are
+	// drawn instanced (instances is null if not)
+	InstanceBatch instances;
+	int templateBuffer;
+	int templateVertices;
+	final float[] templateBounds = new float[6];
+	int instanceBuffer;
+	int instanceBytes;
+
+	// Whether instances must be regathered though no chunk is dirty, as
+	// their entities are moving between ticks
+	boolean regather;
+
+	// Display list of each chunk (0 if none yet) and the chunks with
+	// entities, for graphics recorded into display lists (lists is null if
+	// not, see GraphicEngine.setDisplayListed)
+	int[] lists;
+	BitSet listed;
+
+	// Entity slots by chunk
+	final ChunkIndex index = new ChunkIndex();
+
+	// Vertex buffers of non-empty chunks
+	final ChunkTable table = new ChunkTable();
+
+	// Chunks to rebuild, and the generation of each chunk's latest rebuild
+	final BitSet dirty;
+	final int[] generations;
+
+	// Uploaded chunks that were greedy-meshed, and the program drawn with in
+	// place of the function's (0 for the function's own)
+	final BitSet greedy;
+	int program;
+
+	// Resource to draw this graphic's entities with when rebuilding
+	GraphicResource resource;
+
+	/**
+	 * Whether this graphic can be drawn straight after another without
+	 * finalizing and initializing its function in between.
+	 */
+	boolean canBatchWith(GraphicChunks other) {
+		return textureId != 0
+				&& textureId == other.textureId
+				&& graphic.getFunc() == other.graphic.getFunc()
+				&& program == other.program;
+	}
+
+	GraphicChunks(Graphic graphic, boolean texture, int textureId,
+			float[] uvTransform, int chunks) {
+		this.graphic = graphic;
+		this.texture = texture;
+		this.textureId = textureId;
+		this.uvTransform = uvTransform;
+		this.dirty = new BitSet(chunks);
+		this.generations = new int[chunks];
+		this.greedy = new BitSet(chunks);
+	}
+}
@@ -2,10 +2,16 @@ package engine;
 
 import java.io.*;
 import java.nio.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import javax.imageio.*;
 import java.awt.image.*;
@@ -18,6 +24,9 @@ import org.lwjgl.util.glu.GLU;
 public final class GraphicEngine {
 	// Display
 	private static DisplayMode displayMode;
+	
+	// Makes the GL calls for the per-frame and loading paths
+	private static RenderBackend backend;
 
 	// Map of texture filenames to corresponding Graphic objects
 	private static HashMap<String, Graphic> textureMap;
@@ -25,15 +34,123 @@ public final class GraphicEngine {
 	// Map of graphic functions to corresponding Graphic objects
 	private static HashMap<GraphicFunction, Graphic> functionMap;
 	
-	private static HashMap<Graphic, int[]> displayListMap;
+	// Decodes textures in the background
+	private static TextureLoader textureLoader;
+	
+	// Decoded textures saved from previous runs
+	private static TextureCache textureCache;
+	
+	// Map of graphics to their chunk state, and the same in creation order
+	private static HashMap<Graphic, GraphicChunks> chunksMap;
+	private static ArrayList<GraphicChunks> chunksList;
+	
+	// Render queue: chunk state sorted by GraphicChunks.sortKey, re-sorted
+	// when graphics are added
+	private static GraphicChunks[] drawOrder;
+	private static boolean drawOrderDirty;
+	private static IdentityHashMap<GraphicFunction, Integer> functionIds;
+	
+	private static final Comparator<GraphicChunks> DRAW_ORDER = new Comparator<GraphicChunks>() {
+		@Override
+		public int compare(GraphicChunks a, GraphicChunks b) {
+			return Long.compare(a.sortKey, b.sortKey);
+		}
+	};
+	
+	// Vertex buffers released by chunks that emptied, ready for reuse
+	private static int[] freeBuffers;
+	private static int freeBufferCount;
+	
+	// Culling
+	private static Frustum frustum;
+	private static float[] projectionMatrix;
+	private static float[] modelviewMatrix;
+	private static float drawDistance = 200.0f;
+
+	// Builds chunk meshes on worker threads
+	private static ChunkBuilder chunkBuilder;
+
+	// Snapshot currently being recorded (written to by drawBox), and the
+	// position subtracted from boxes when recording an instanced mesh
+	private static ChunkSnapshot recording;
+	private static float recordingX, recordingY, recordingZ;
+	
+	// Scratch mesh instanced meshes are built in
+	private static ChunkMesh templateMesh;
+	
+	// Graphic whose display list is being compiled (drawBox draws straight
+	// into it), and the scratch mesh its boxes are built in
+	private static GraphicChunks listing;
+	private static ChunkMesh listMesh;
+	
+	// Greedy meshing merges coplanar faces before they are added to the mesh,
+	// and the program that draws its tiled faces (0 if headless)
+	private static boolean greedyMeshing;
+	private static int greedyProgram;
+	
+	// Solid cells of each chunk, for the faces of the boxes drawn in it (null
+	// until one is set), and the chunk being rebuilt (-1 if none)
+	private static ChunkOccupancy[] occupancies;
+	private static int recordingChunk;
+	
+	// Bytes of chunk geometry uploaded per frame (at least one chunk always is)
+	private static int uploadBudget = 4 * 1024 * 1024;
+
+	// Entities by render slot, and slots freed by unregistered entities
+	private static Entity[] slotEntities;
+	private static int slotCount;
+	private static int[] freeSlots;
+	private static int freeSlotCount;
 
-	// Render Set
-	private static HashSet<Entity> renderSet;
-	private static HashSet<Entity> seenSet;
+	// Render Set (slots of entities changed since the last frame)
+	private static SlotSet renderSet;
 	
+	// Entity state published by the simulation thread, if it runs on its own
+	// (null to read entities directly), the snapshot this frame uses and how
+	// far it is towards the next tick
+	private static SnapshotExchange snapshots;
+	private static EntitySnapshot snapshot;
+	private static float snapshotAlpha;
+	
+	// Per slot: position last indexed from a snapshot, and the entity's
+	// index in the current snapshot (valid when snapshotFrames matches)
+	private static float[] appliedPositions;
+	private static int[] snapshotIndices;
+	private static int[] snapshotFrames;
+	
+	// Entity being recorded and its position, read by drawBox
+	private static Entity recordedEntity;
+	private static float entityX, entityY, entityZ;
+	
+	// Number of chunks rebuilt and uploaded during the last frame
+	private static int chunksRebuilt;
+	private static int chunksUploaded;
+	
+	// Number of chunks drawn, culled and skipped as empty during the last frame
+	private static int chunksVisible;
+	private static int chunksCulled;
+	private static int chunksEmpty;
+	
+	// Per-frame timings and counters, also published over JMX
+	private static RenderStats stats;
+	
+	// Frames rendered, used to stamp when textures and chunks were last drawn
+	private static int frameNumber;
+	
+	// Estimated bytes of textures and chunk geometry on the GPU, and how many
+	// may be kept before the least recently drawn are evicted
+	private static long gpuBytes;
+	private static long gpuMemoryBudget = 256L * 1024 * 1024;
+	
+	// Draws of resident textures and chunks, draws that found them evicted,
+	// and evictions
+	private static long residencyHits;
+	private static long residencyMisses;
+	private static long evictions;
+	
+	// Linked shader programs, and the default program
+	private static ShaderRegistry shaders;
 	public static int shader;
-	private static int vertShader;
-	private static int fragShader;
 
 	/**
 	 * Initialises the Graphics Engine.
@@ -91,55 +208,74 @@ public final class GraphicEngine {
 		GL11.glColor3ub((byte)255, (byte)255, (byte)255);
 		
 		// Shaders
-		shader = ARBShaderObjects.glCreateProgramObjectARB();
-		
-		vertShader = ARBShaderObjects.glCreateShaderObjectARB(ARBVertexShader.GL_VERTEX_SHADER_ARB);
-		fragShader = ARBShaderObjects.glCreateShaderObjectARB(ARBFragmentShader.GL_FRAGMENT_SHADER_ARB);
+		shaders = new ShaderRegistry(new File("res/shaders"), new File("cache/shaders"));
+		shader = shaders.load("default", "vertex.shader", "fragment.shader");
+
+		initialiseState(new LwjglBackend());
+	}
+	
+	/**
+	 * Initialises the Graphics Engine without a display, drawing through the
+	 * given backend. Used to run the engine on machines without a GPU.
+	 */
+	public static void initialiseHeadless(RenderBackend renderBackend) {
+		initialiseState(renderBackend);
+	}
+	
+	/**
+	 * Sets up everything other than the display and shaders.
+	 */
+	private static void initialiseState(RenderBackend renderBackend) {
+		backend = renderBackend;
 		
-		String code = "", line;
-		BufferedReader reader = new BufferedReader(new FileReader("res/shaders/vertex.shader"));
-		while ((line = reader.readLine()) != null){
-			code += line + "\n";
+		// Initialise texture map
+		textureMap = new HashMap<String, Graphic>();
+		functionMap = new HashMap<GraphicFunction, Graphic>();
+		textureLoader = new TextureLoader();
+		textureCache = new TextureCache(new File("res"), new File("cache/textures"));
+		chunksMap = new HashMap<Graphic, GraphicChunks>();
+		chunksList = new ArrayList<GraphicChunks>();
+		drawOrder = new GraphicChunks[0];
+		drawOrderDirty = false;
+		functionIds = new IdentityHashMap<GraphicFunction, Integer>();
+		templateMesh = new ChunkMesh();
+		listMesh = new ChunkMesh(24);
+		listing = null;
+		occupancies = null;
+		recordingChunk = -1;
+		greedyProgram = 0;
+		freeBuffers = new int[64];
+		freeBufferCount = 0;
+		if (chunkBuilder != null) {
+			chunkBuilder.shutdown();
 		}
+		chunkBuilder = new ChunkBuilder();
 		
-		ARBShaderObjects.glShaderSourceARB(vertShader, code);
-		ARBShaderObjects.glCompileShaderARB(vertShader);
-		
-		code = "";
-		reader = new BufferedReader(new FileReader("res/shaders/fragment.shader"));
-		while ((line = reader.readLine()) != null){
-			code += line + "\n";
-		}
+		slotEntities = new Entity[1024];
+		slotCount = 0;
+		freeSlots = new int[64];
+		freeSlotCount = 0;
+		renderSet = new SlotSet();
+		snapshots = null;
+		snapshot = null;
+		appliedPositions = new float[1024 * 3];
+		snapshotIndices = new int[1024];
+		snapshotFrames = new int[1024];
 		
-		ARBShaderObjects.glShaderSourceARB(fragShader, code);
-		ARBShaderObjects.glCompileShaderARB(fragShader);
+		frustum = new Frustum();
+		projectionMatrix = new float[16];
+		modelviewMatrix = new float[16];
 		
-        ARBShaderObjects.glAttachObjectARB(shader, vertShader);
-        ARBShaderObjects.glAttachObjectARB(shader, fragShader);
-        ARBShaderObjects.glLinkProgramARB(shader);
-        ARBShaderObjects.glValidateProgramARB(shader);
-        
-        IntBuffer iVal = BufferUtils.createIntBuffer(1);
-        ARBShaderObjects.glGetObjectParameterARB(shader, ARBShaderObjects.GL_OBJECT_INFO_LOG_LENGTH_ARB, iVal);
-
-        int length = iVal.get();
-        if (length > 1) {
-            // We have some info we need to output.
-            ByteBuffer infoLog = BufferUtils.createByteBuffer(length);
-            iVal.flip();
-            ARBShaderObjects.glGetInfoLogARB(shader, iVal, infoLog);
-            byte[] infoBytes = new byte[length];
-            infoLog.get(infoBytes);
-            String out = new String(infoBytes);
-            System.out.println("Info log:\n"+out);
-        }
-
-		// Initialise texture map
-		textureMap = new HashMap<String, Graphic>();
-		functionMap = new HashMap<GraphicFunction, Graphic>();
-		renderSet = new HashSet<Entity>();
-		seenSet = new HashSet<Entity>();
-		displayListMap = new HashMap<Graphic, int[]>();;
+		stats = new RenderStats(600);
+		stats.setDumpDirectory(new File("cache/stats"));
+		stats.register("engine:type=RenderStats");
+	}
+	
+	/**
+	 * Gets the shader programs, to load more variants or look them up by name.
+	 */
+	public static ShaderRegistry getShaders() {
+		return shaders;
 	}
 	
 	/**
@@ -161,65 +297,14 @@ public final class GraphicEngine {
 	public static Graphic getGraphic(String filename, GraphicFunction func) {
 		Graphic g = textureMap.get(filename);
 
-		if (g == null) {
+		if (g == null && textureLoader.isPending(filename)) {
+			// Already loading in the background - finish it now
+			g = textureLoader.finish(filename);
+		} else if (g == null) {
 			System.out.println("Preloading Graphic: " + filename);
 
 			try {
-				BufferedImage img = ImageIO.read(new File("res/" + filename));
-
-				// Get ARGB pixel int array from BufferedImage
-				byte[] pixels = ((DataBufferByte)img.getRaster().getDataBuffer()).getData();
-
-				// Convert to flipped RGBA pixel array
-				pixels = convertPixels(pixels, img.getWidth(), img.getHeight());
-
-				// Create buffer for image
-				ByteBuffer imgBuffer = BufferUtils.createByteBuffer(pixels.length);
-				imgBuffer.put(pixels);
-				imgBuffer.flip();
-
-				// Create buffer for texture id
-				IntBuffer idBuffer = BufferUtils.createIntBuffer(1);
-
-				// Create texture
-				GL11.glGenTextures(idBuffer);
-				GL11.glBindTexture(GL11.GL_TEXTURE_2D, idBuffer.get(0));
-
-				// Set texture parameters
-				GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_WRAP_S, GL12.GL_CLAMP_TO_EDGE);
-				GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_WRAP_T, GL12.GL_CLAMP_TO_EDGE);
-				GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_NEAREST);
-				GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_NEAREST);
-
-				GL11.glTexImage2D(
-						GL11.GL_TEXTURE_2D,
-						0,
-						//img.getColorModel().hasAlpha() ? EXTBgra.GL_BGRA_EXT : EXTBgra.GL_BGR_EXT,
-						img.getColorModel().hasAlpha() ? GL11.GL_RGBA : GL11.GL_RGB,
-								img.getWidth(),
-								img.getHeight(),
-								0,
-								//img.getColorModel().hasAlpha() ? GL11.GL_RGBA : GL11.GL_RGB,
-								img.getColorModel().hasAlpha() ? EXTBgra.GL_BGRA_EXT : EXTBgra.GL_BGR_EXT,
-										GL11.GL_UNSIGNED_BYTE,
-										imgBuffer
-				);
-
-				// Create graphic
-				g = new Graphic(idBuffer.get(0), img.getWidth(), img.getHeight(), func, 1);
-
-				// Update maps
-				textureMap.put(filename, g);
-				
-				int[] displayLists = new int[World.CHUNK * World.CHUNK * World.CHUNK];
-				int n = GL11.glGenLists(displayLists.length);
-				
-				// FIXME: No array
-				for (int i = 0; i < displayLists.length; i++) {
-					displayLists[i] = n + i;
-				}
-				
-				displayListMap.put(g, displayLists);
+				g = uploadTexture(filename, decodeTexture(filename), func);
 			} catch (IOException e) {
 				e.printStackTrace();
 				Sys.alert("Error", "Error loading texture: " + filename);
@@ -229,6 +314,165 @@ public final class GraphicEngine {
 		return g;
 	}
 	
+	/**
+	 * Starts loading a graphic in the background. The image is decoded on a
+	 * worker thread and uploaded by the render thread during render().
+	 * @param
+	 * 			filename	Filename of graphic to be preloaded
+	 * @return
+	 * 			Future completed once the graphic is ready
+	 */
+	public static Future<Graphic> preloadGraphic(String filename, GraphicFunction func) {
+		Graphic g = textureMap.get(filename);
+		
+		if (g != null) {
+			FutureTask<Graphic> done = new FutureTask<Graphic>(new Runnable() {
+				@Override
+				public void run() {
+				}
+			}, g);
+			done.run();
+			return done;
+		}
+		
+		return textureLoader.load(filename, func);
+	}
+	
+	public static Future<Graphic> preloadGraphic(String filename) {
+		return preloadGraphic(filename, GraphicFunction.TEXTURE);
+	}
+	
+	/**
+	 * Starts loading several graphics in the background, decoding them in
+	 * parallel. Useful when loading a level.
+	 * @return
+	 * 			Futures for each graphic, in the order given
+	 */
+	public static List<Future<Graphic>> preloadAll(Collection<String> filenames) {
+		List<Future<Graphic>> futures = new ArrayList<Future<Graphic>>(filenames.size());
+		
+		for (String filename : filenames) {
+			futures.add(preloadGraphic(filename));
+		}
+		
+		return futures;
+	}
+	
+	/**
+	 * Reads and converts a texture's pixels, from the texture cache if it has
+	 * an up to date entry. Makes no GL calls, so is safe to call from any thread.
+	 */
+	static TextureData decodeTexture(String filename) throws IOException {
+		TextureData data = textureCache.load(filename);
+		
+		if (data != null) {
+			return data;
+		}
+		
+		BufferedImage img = ImageIO.read(new File("res/" + filename));
+		
+		if (img == null) {
+			throw new IOException("Unsupported image format: " + filename);
+		}
+
+		// Convert to flipped BGRA pixel buffer
+		ByteBuffer imgBuffer = convertPixels(img);
+		data = new TextureData(img.getWidth(), img.getHeight(), img.getColorModel().hasAlpha(), imgBuffer);
+		
+		textureCache.store(filename, data);
+		
+		return data;
+	}
+	
+	/**
+	 * Creates a texture from decoded pixels and registers its graphic. Must be
+	 * called from the render thread.
+	 */
+	static Graphic uploadTexture(String filename, TextureData data, GraphicFunction func) {
+		int id = createTexture(data.getWidth(), data.getHeight(), data.hasAlpha(), data.getPixels());
+
+		// Create graphic
+		Graphic g = new Graphic(id, data.getWidth(), data.getHeight(), func, 1);
+
+		// Update maps
+		textureMap.put(filename, g);
+		GraphicChunks gc = createChunks(g, true, id, null);
+		gc.filename = filename;
+		gc.textureBytes = data.getWidth() * data.getHeight() * 4;
+		
+		return g;
+	}
+	
+	/**
+	 * Packs texture graphics into shared atlas pages, so that graphics drawn
+	 * with the same function are drawn without rebinding textures in between.
+	 * Each packed file gets its own graphic, sized as the original texture,
+	 * whose chunks have their UVs mapped into the page. Files larger than a
+	 * page, or already loaded, are loaded as normal. Must be called from the
+	 * render thread before the graphics are used.
+	 * @param
+	 * 			filenames	Filenames of texture graphics to pack
+	 * 			pageSize	Width and height of each page in pixels
+	 * @return
+	 * 			The atlas, for reporting how full its pages are
+	 */
+	public static TextureAtlas buildAtlas(Collection<String> filenames, int pageSize) {
+		TextureAtlas atlas = new TextureAtlas(pageSize);
+		HashMap<String, TextureData> decoded = new HashMap<String, TextureData>();
+		
+		for (String filename : filenames) {
+			if (textureMap.containsKey(filename) || decoded.containsKey(filename)) {
+				continue;
+			}
+			
+			try {
+				TextureData data = decodeTexture(filename);
+				if (atlas.add(filename, data)) {
+					decoded.put(filename, data);
+				} else {
+					uploadTexture(filename, data, GraphicFunction.TEXTURE);
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				Sys.alert("Error", "Error loading texture: " + filename);
+			}
+		}
+		
+		atlas.pack();
+		
+		// Upload each page once, then give every packed file a graphic on it
+		int[] pageIds = new int[atlas.getPageCount()];
+		for (int i = 0; i < pageIds.length; i++) {
+			pageIds[i] = createTexture(pageSize, pageSize, true, atlas.getPagePixels(i));
+		}
+		
+		for (String filename : atlas.getNames()) {
+			TextureAtlas.Region region = atlas.getRegion(filename);
+			int id = pageIds[region.getPage()];
+			Graphic g = new Graphic(id, region.getWidth(), region.getHeight(), GraphicFunction.TEXTURE, 1);
+			
+			textureMap.put(filename, g);
+			createChunks(g, true, id, region.getUVTransform());
+		}
+		
+		System.out.println(atlas);
+		
+		return atlas;
+	}
+	
+	/**
+	 * Creates a texture from flipped BGRA pixels.
+	 * @return
+	 * 			The texture id
+	 */
+	private static int createTexture(int width, int height, boolean alpha, ByteBuffer pixels) {
+		int id = backend.createTexture(width, height, alpha, pixels);
+		gpuBytes += (long) width * height * 4;
+		stats.count(RenderStats.COUNT_TEXTURE_UPLOADS, 1);
+		
+		return id;
+	}
+	
 	public static Graphic getGraphic(String filename) {
 		return getGraphic(filename, GraphicFunction.TEXTURE);
 	}
@@ -240,210 +484,1192 @@ public final class GraphicEngine {
 			g = new Graphic(func, 1);
 		
 			functionMap.put(func, g);
-			
-			int[] displayLists = new int[World.CHUNK * World.CHUNK * World.CHUNK];
-			int n = GL11.glGenLists(displayLists.length);
-			
-			// FIXME: No array
-			for (int i = 0; i < displayLists.length; i++) {
-				displayLists[i] = n + i;
-			}
-			
-			displayListMap.put(g, displayLists);
+			createChunks(g, false, 0, null);
 		}
 		
 		return g;
 	}
-
-	public static void addToRenderSet(Entity e) {
-		renderSet.add(e);
+	
+	/**
+	 * Creates the chunk bookkeeping for a graphic. Vertex buffers are only
+	 * allocated once a chunk has geometry.
+	 * @param
+	 * 			textureId	Texture the graphic is drawn from, or 0
+	 * 			uvTransform	Transform into an atlas page, or null
+	 */
+	private static GraphicChunks createChunks(Graphic g, boolean texture, int textureId, float[] uvTransform) {
+		GraphicChunks gc = new GraphicChunks(g, texture, textureId, uvTransform,
+				World.CHUNK * World.CHUNK * World.CHUNK);
+		
+		updateSortKey(gc);
+		
+		chunksMap.put(g, gc);
+		chunksList.add(gc);
+		drawOrderDirty = true;
+		
+		return gc;
 	}
 	
 	/**
-	 * Called at start of the drawing phase.
+	 * Gets a vertex buffer from the free pool, or creates one if it is empty.
 	 */
-	public static void render() {
-		GL11.glClear(GL11.GL_COLOR_BUFFER_BIT | GL11.GL_DEPTH_BUFFER_BIT);
+	private static int acquireBuffer() {
+		if (freeBufferCount > 0) {
+			return freeBuffers[--freeBufferCount];
+		}
+		return backend.createBuffer();
+	}
+	
+	/**
+	 * Frees a vertex buffer's storage and returns it to the free pool.
+	 */
+	private static void releaseBuffer(int buffer) {
+		backend.bufferData(buffer, null);
+		
+		if (freeBufferCount == freeBuffers.length) {
+			freeBuffers = Arrays.copyOf(freeBuffers, freeBuffers.length * 2);
+		}
+		freeBuffers[freeBufferCount++] = buffer;
+	}
 
-		for (Entity e : renderSet) {
-			if (seenSet.contains(e)) {
-				continue;
+	/**
+	 * Draws a function graphic's entities instanced: one entity's boxes are
+	 * recorded once as a shared mesh, and every entity is drawn as a copy of
+	 * it moved to its position, one draw per chunk. Only for functions whose
+	 * entities all look the same relative to their position.
+	 */
+	public static void setInstanced(GraphicFunction func, boolean instanced) {
+		GraphicChunks gc = chunksMap.get(getGraphic(func));
+		
+		if (instanced == (gc.instances != null)) {
+			return;
+		}
+		
+		int chunks = World.CHUNK * World.CHUNK * World.CHUNK;
+		
+		if (instanced) {
+			setDisplayListed(func, false);
+			releaseChunkBuffers(gc);
+			gc.instances = new InstanceBatch();
+		} else {
+			gpuBytes -= (long) gc.templateVertices * ChunkMesh.BYTES_PER_VERTEX + gc.instanceBytes;
+			if (gc.templateBuffer != 0) {
+				releaseBuffer(gc.templateBuffer);
 			}
-			for (GraphicResource gr : e.getGraphicResources()) {
-				int chunk = e.getPosition().calcChunk();
-				Graphic g = gr.getGraphic();
-				int displayList = displayListMap.get(g)[chunk];
-				
-				GL11.glNewList(displayList, GL11.GL_COMPILE);
-				
-				Set<Entity> set = World.getGraphicInstances(g);
-				
-				if (set != null) {
-					for (Entity drawEntity : set) {
-						if (drawEntity.getPosition().calcChunk() == chunk) {
-							seenSet.add(drawEntity);
-							drawEntity.draw(gr);
-						}
-					}
+			if (gc.instanceBuffer != 0) {
+				releaseBuffer(gc.instanceBuffer);
+			}
+			gc.templateBuffer = 0;
+			gc.templateVertices = 0;
+			gc.instanceBuffer = 0;
+			gc.instanceBytes = 0;
+			gc.instances = null;
+			gc.regather = false;
+		}
+		
+		// Rebuild or regather every chunk with entities in it
+		for (int chunk = 0; chunk < chunks; chunk++) {
+			if (gc.index.first(chunk) >= 0) {
+				gc.dirty.set(chunk);
+			}
+		}
+	}
+	
+	/**
+	 * Records a function graphic's chunks into display lists instead of
+	 * vertex buffers, for entities whose draw() makes GL calls of its own
+	 * besides drawBox. Those calls are compiled into the chunk's list along
+	 * with the boxes, in the order they are made, and replayed under the
+	 * camera every frame. Display-listed chunks are not culled or evicted.
+	 */
+	public static void setDisplayListed(GraphicFunction func, boolean listed) {
+		GraphicChunks gc = chunksMap.get(getGraphic(func));
+		
+		if (listed == (gc.lists != null)) {
+			return;
+		}
+		
+		int chunks = World.CHUNK * World.CHUNK * World.CHUNK;
+		
+		if (listed) {
+			setInstanced(func, false);
+			releaseChunkBuffers(gc);
+			gc.lists = new int[chunks];
+			gc.listed = new BitSet(chunks);
+		} else {
+			for (int chunk = 0; chunk < chunks; chunk++) {
+				if (gc.lists[chunk] != 0) {
+					backend.deleteList(gc.lists[chunk]);
 				}
-				
-				GL11.glEndList();
 			}
+			gc.lists = null;
+			gc.listed = null;
 		}
+		
+		// Rebuild every chunk with entities in it
+		for (int chunk = 0; chunk < chunks; chunk++) {
+			if (gc.index.first(chunk) >= 0) {
+				gc.dirty.set(chunk);
+			}
+		}
+	}
+	
+	/**
+	 * Frees a graphic's chunk vertex buffers, once it is drawn another way.
+	 */
+	private static void releaseChunkBuffers(GraphicChunks gc) {
+		ChunkTable table = gc.table;
+		
+		while (table.size() > 0) {
+			gpuBytes -= chunkBytes(table.getVertexCount(0));
+			releaseBuffer(table.remove(table.getChunk(0)));
+		}
+		
+		// Drop chunks still being built, so they aren't uploaded afterwards
+		for (int chunk = 0; chunk < gc.generations.length; chunk++) {
+			gc.generations[chunk]++;
+		}
+		
+		gc.greedy.clear();
+		updateProgram(gc);
+	}
+	
+	/**
+	 * Marks whether an uploaded chunk was greedy-meshed, switching its
+	 * graphic to the greedy_tiles program while any of its chunks are.
+	 */
+	private static void setGreedy(GraphicChunks gc, int chunk, boolean greedy) {
+		if (gc.greedy.get(chunk) != greedy) {
+			gc.greedy.set(chunk, greedy);
+			updateProgram(gc);
+		}
+	}
+	
+	private static void updateProgram(GraphicChunks gc) {
+		int program = gc.greedy.isEmpty() ? 0 : greedyProgram;
+		if (program != gc.program) {
+			gc.program = program;
+			updateSortKey(gc);
+		}
+	}
+	
+	/**
+	 * Sets a graphic's place in the render queue: texture graphics first,
+	 * then by program (0, the function's own, first), function and texture.
+	 */
+	private static void updateSortKey(GraphicChunks gc) {
+		Integer functionId = functionIds.get(gc.graphic.getFunc());
+		if (functionId == null) {
+			functionId = functionIds.size() + 1;
+			functionIds.put(gc.graphic.getFunc(), functionId);
+		}
+		
+		// 1 bit texture flag, 16 bits program, 14 bits function, 32 bits texture
+		gc.sortKey = (gc.texture ? 0L : 1L) << 62
+				| (long) (gc.program & 0xffff) << 46
+				| (long) (functionId & 0x3fff) << 32
+				| gc.textureId & 0xffffffffL;
+		drawOrderDirty = true;
+	}
+	
+	/**
+	 * Enables merging of adjacent coplanar faces that share a tile. Chunks
+	 * built while enabled need a shader that repeats tiled UVs (see
+	 * GreedyMesher), so graphics are drawn with the greedy_tiles program in
+	 * place of their function's for as long as any of their uploaded chunks
+	 * were greedy-meshed. Other graphics keep their function's program.
+	 */
+	public static void setGreedyMeshing(boolean enabled) throws IOException {
+		if (enabled && shaders != null && greedyProgram == 0) {
+			greedyProgram = shaders.load("greedy", "greedy_tiles.vertex", "greedy_tiles.frag");
+		}
+		greedyMeshing = enabled;
+	}
+	
+	public static boolean isGreedyMeshing() {
+		return greedyMeshing;
+	}
+	
+	/**
+	 * Sets which cells of a chunk are solid, and rebuilds it. Boxes drawn in
+	 * the chunk then take their exposed faces from the occupancy instead of
+	 * Entity.getExposedFaces(), unless their cell isn't solid. Chunks are
+	 * taken to be occupancy.getSize() units along each side, aligned to
+	 * multiples of it, with one cell per unit.
+	 * <p>
+	 * Cells must be edited on the render thread. Call this again after
+	 * editing, for the chunk and for any neighbour whose border changed.
+	 * @param
+	 * 			occupancy	Solid cells of the chunk, or null to go back to
+	 * 						Entity.getExposedFaces()
+	 */
+	public static void setOccupancy(int chunk, ChunkOccupancy occupancy) {
+		if (occupancies == null) {
+			occupancies = new ChunkOccupancy[World.CHUNK * World.CHUNK * World.CHUNK];
+		}
+		occupancies[chunk] = occupancy;
+		
+		for (int i = 0; i < chunksList.size(); i++) {
+			GraphicChunks gc = chunksList.get(i);
+			if (gc.index.first(chunk) >= 0) {
+				gc.dirty.set(chunk);
+			}
+		}
+	}
 
-		Camera.viewFrom();
-
-		for (Graphic g : textureMap.values()) {
-			int[] displayLists = displayListMap.get(g);
-			
-			g.getFunc().initialize(g);
-			for (int displayList : displayLists) {
-				GL11.glCallList(displayList);
+	/**
+	 * Gives an entity a render slot and queues it to be drawn. The entity must
+	 * keep the slot and return it from getRenderSlot() until it is unregistered.
+	 * @return
+	 * 			The entity's render slot
+	 */
+	public static int register(Entity e) {
+		int slot;
+		if (freeSlotCount > 0) {
+			slot = freeSlots[--freeSlotCount];
+		} else {
+			if (slotCount == slotEntities.length) {
+				slotEntities = Arrays.copyOf(slotEntities, slotCount * 2);
 			}
-			g.getFunc().finalize(g);
+			slot = slotCount++;
 		}
 		
-		for (Graphic g : functionMap.values()) {
-			int[] displayLists = displayListMap.get(g);
+		slotEntities[slot] = e;
+		renderSet.add(slot);
+		return slot;
+	}
+	
+	/**
+	 * Removes an entity from the chunks it was drawn in and frees its slot.
+	 */
+	public static void unregister(Entity e) {
+		int slot = registeredSlot(e);
+		List<GraphicResource> resources = e.getGraphicResources();
+		
+		for (int i = 0; i < resources.size(); i++) {
+			GraphicResource gr = resources.get(i);
+			GraphicChunks gc = chunksMap.get(gr.getGraphic());
 			
-			g.getFunc().initialize(g);
-			for (int displayList : displayLists) {
-				GL11.glCallList(displayList);
+			if (gc != null) {
+				int chunk = gc.index.getChunk(slot);
+				if (chunk >= 0) {
+					gc.dirty.set(chunk);
+					gc.resource = gr;
+					gc.index.remove(slot);
+				}
 			}
-			g.getFunc().finalize(g);
 		}
-
-		renderSet.clear();
-		seenSet.clear();
+		
+		slotEntities[slot] = null;
+		if (freeSlotCount == freeSlots.length) {
+			freeSlots = Arrays.copyOf(freeSlots, freeSlotCount * 2);
+		}
+		freeSlots[freeSlotCount++] = slot;
 	}
 	
-	public static void drawBox(Entity e, Graphic g, int top, int front, int left, int right, int back, int bottom) {
-		if (e.getExposedFaces() != 0) {
-			int tilesPerRow = g.getWidth() / 32;
-			float tileUnit = 1f/tilesPerRow;
-			float txl = 1f/g.getWidth();
-
-			GL11.glBegin(GL11.GL_QUADS);
-
-			float x1 = e.position.x, y1 = e.position.y, z1 = e.position.z;
-			float x2 = x1 + 1f, y2 = y1 + 1f, z2 = z1 + 1f;
-
-			// Top Face
-			if ((e.getExposedFaces() & (1 << 0)) > 0) {
-				GL11.glNormal3f(0f, 1f, 0f);
-				GL11.glTexCoord2f(top % tilesPerRow * tileUnit + txl, 1f - (top / tilesPerRow + 1) * tileUnit + txl);
-				GL11.glVertex3f(x1, y2, z2); // Bottom Left
-				GL11.glTexCoord2f((top % tilesPerRow + 1) * tileUnit - txl, 1f - (top / tilesPerRow + 1) * tileUnit + txl);
-				GL11.glVertex3f(x2, y2, z2); // Bottom Right
-				GL11.glTexCoord2f((top % tilesPerRow + 1) * tileUnit - txl, 1f - top / tilesPerRow * tileUnit - txl);
-				GL11.glVertex3f(x2, y2, z1); // Top Right
-				GL11.glTexCoord2f(top % tilesPerRow * tileUnit + txl, 1f - top / tilesPerRow * tileUnit - txl);
-				GL11.glVertex3f(x1, y2, z1); // Top Left
-			}
-
-			// Front Face
-			if ((e.getExposedFaces() & (1 << 1)) > 0) {
-				GL11.glNormal3f(0f, 0f, 1f);
-				GL11.glTexCoord2f(front % tilesPerRow * tileUnit + txl, 1f - (front / tilesPerRow + 1) * tileUnit + txl);
-				GL11.glVertex3f(x1, y1, z2); // Bottom Left
-				GL11.glTexCoord2f((front % tilesPerRow + 1) * tileUnit - txl, 1f - (front / tilesPerRow + 1) * tileUnit + txl);
-				GL11.glVertex3f(x2, y1, z2); // Bottom Right
-				GL11.glTexCoord2f((front % tilesPerRow + 1) * tileUnit - txl, 1f - front / tilesPerRow * tileUnit - txl);
-				GL11.glVertex3f(x2, y2, z2); // Top Right
-				GL11.glTexCoord2f(front % tilesPerRow * tileUnit + txl, 1f - front / tilesPerRow * tileUnit - txl);
-				GL11.glVertex3f(x1, y2, z2); // Top Left
-			}
-
-			// Left Face
-			if ((e.getExposedFaces() & (1 << 2)) > 0) {
-				GL11.glNormal3f(-1f, 0f, 0f);
-				GL11.glTexCoord2f(left % tilesPerRow * tileUnit + txl, 1f - (left / tilesPerRow + 1) * tileUnit + txl);
-				GL11.glVertex3f(x1, y1, z1); // Bottom Left
-				GL11.glTexCoord2f((left % tilesPerRow + 1) * tileUnit - txl, 1f - (left / tilesPerRow + 1) * tileUnit + txl);
-				GL11.glVertex3f(x1, y1, z2); // Bottom Right
-				GL11.glTexCoord2f((left % tilesPerRow + 1) * tileUnit - txl, 1f - left / tilesPerRow * tileUnit - txl);
-				GL11.glVertex3f(x1, y2, z2); // Top Right
-				GL11.glTexCoord2f(left % tilesPerRow * tileUnit + txl, 1f - left / tilesPerRow * tileUnit - txl);
-				GL11.glVertex3f(x1, y2, z1); // Top Left
-			}
-
-			// Right Face
-			if ((e.getExposedFaces() & (1 << 3)) > 0) {
-				GL11.glNormal3f(1f, 0f, 0f);
-				GL11.glTexCoord2f(right % tilesPerRow * tileUnit + txl, 1f - (right / tilesPerRow + 1) * tileUnit + txl);
-				GL11.glVertex3f(x2, y1, z2); // Bottom Left
-				GL11.glTexCoord2f((right % tilesPerRow + 1) * tileUnit - txl, 1f - (right / tilesPerRow + 1) * tileUnit + txl);
-				GL11.glVertex3f(x2, y1, z1); // Bottom Right
-				GL11.glTexCoord2f((right % tilesPerRow + 1) * tileUnit - txl, 1f - right / tilesPerRow * tileUnit - txl);
-				GL11.glVertex3f(x2, y2, z1); // Top Right
-				GL11.glTexCoord2f(right % tilesPerRow * tileUnit + txl, 1f - right / tilesPerRow * tileUnit - txl);
-				GL11.glVertex3f(x2, y2, z2); // Top Left
-			}
-
-			// Back Face
-			if ((e.getExposedFaces() & (1 << 4)) > 0) {
-				GL11.glNormal3f(0f, 0f, -1f);
-				GL11.glTexCoord2f(back % tilesPerRow * tileUnit + txl, 1f - (back / tilesPerRow + 1) * tileUnit + txl);
-				GL11.glVertex3f(x2, y1, z1); // Bottom Left
-				GL11.glTexCoord2f((back % tilesPerRow + 1) * tileUnit - txl, 1f - (back / tilesPerRow + 1) * tileUnit + txl);
-				GL11.glVertex3f(x1, y1, z1); // Bottom Right
-				GL11.glTexCoord2f((back % tilesPerRow + 1) * tileUnit - txl, 1f - back / tilesPerRow * tileUnit - txl);
-				GL11.glVertex3f(x1, y2, z1); // Top Right
-				GL11.glTexCoord2f(back % tilesPerRow * tileUnit + txl, 1f - back / tilesPerRow * tileUnit - txl);
-				GL11.glVertex3f(x2, y2, z1); // Top Left
-			}
-
-			// Bottom Face
-			if ((e.getExposedFaces() & (1 << 5)) > 0) {
-				GL11.glNormal3f(0f, -1f, 0f);
-				GL11.glTexCoord2f(bottom % tilesPerRow * tileUnit + txl, 1f - (bottom / tilesPerRow + 1) * tileUnit + txl);
-				GL11.glVertex3f(x1, y1, z1); // Bottom Left
-				GL11.glTexCoord2f((bottom % tilesPerRow + 1) * tileUnit - txl, 1f - (bottom / tilesPerRow + 1) * tileUnit + txl);
-				GL11.glVertex3f(x2, y1, z1); // Bottom Right
-				GL11.glTexCoord2f((bottom % tilesPerRow + 1) * tileUnit - txl, 1f - bottom / tilesPerRow * tileUnit - txl);
-				GL11.glVertex3f(x2, y1, z2); // Top Right
-				GL11.glTexCoord2f(bottom % tilesPerRow * tileUnit + txl, 1f - bottom / tilesPerRow * tileUnit - txl);
-				GL11.glVertex3f(x1, y1, z2); // Top Left
-			}
-
-			GL11.glEnd();
-		}
-	}
-
-	/**
-	 * Converts image pixels from java default ARGB format to flipped RGBA OpenGL format.
+	/**
+	 * Queues a registered entity that was changed or moved, so the chunks it
+	 * was and is in get rebuilt on the next frame. Entities that aren't
+	 * registered are rejected, as their slot may belong to another entity.
+	 */
+	public static void addToRenderSet(Entity e) {
+		renderSet.add(registeredSlot(e));
+	}
+	
+	/**
+	 * Gets the render slot of a registered entity.
+	 * @throws
+	 * 			IllegalArgumentException if the entity isn't registered under
+	 * 			the slot it returns
+	 */
+	private static int registeredSlot(Entity e) {
+		int slot = e.getRenderSlot();
+		
+		if (slot < 0 || slot >= slotCount || slotEntities[slot] != e) {
+			throw new IllegalArgumentException("Entity not registered: " + e);
+		}
+		
+		return slot;
+	}
+	
+	/**
+	 * Takes entity state from snapshots published by a simulation running on
+	 * another thread, instead of reading entities during render(). Each frame
+	 * uses the newest snapshot: entities whose position changed are moved
+	 * between chunks, chunks are built from snapshot positions, and instanced
+	 * graphics are drawn between the last two ticks' positions. Registering
+	 * and unregistering entities must still be done on the render thread.
 	 * @param
-	 * 			pixels		Byte array of pixels
-	 * 		  	width		Width of the image
-	 * 			height		Height of the image
-	 * @return
+	 * 			exchange	Exchange the simulation publishes to, or null to go
+	 * 						back to reading entities directly
 	 */
-	private static byte[] convertPixels(byte[] pixels, int width, int height) {
-		byte[] newPixels = new byte[pixels.length];
-		byte r, g, b, a;
-
-		int i = 0;
-
-		for (int y = 0; y < height; y++) {
-			for (int x = 0; x < width; x++) {
-				// Get ARGB
-				i = (y * width + x) * 4;
-
-				a = pixels[i + 0];
-				r = pixels[i + 1];
-				g = pixels[i + 2];
-				b = pixels[i + 3];
-
-				// Convert to RGBA and flip vertically
-				i = ((height - y - 1) * width + x) * 4;
-
-				newPixels[i + 0] = r;
-				newPixels[i + 1] = g;
-				newPixels[i + 2] = b;
-				newPixels[i + 3] = a;
+	public static void setSnapshots(SnapshotExchange exchange) {
+		snapshots = exchange;
+		snapshot = null;
+	}
+	
+	/**
+	 * Marks a chunk dirty for each of an entity's graphics.
+	 */
+	public static void markDirty(Entity e, int chunk) {
+		List<GraphicResource> resources = e.getGraphicResources();
+		
+		for (int i = 0; i < resources.size(); i++) {
+			GraphicResource gr = resources.get(i);
+			GraphicChunks gc = chunksMap.get(gr.getGraphic());
+			
+			if (gc != null) {
+				gc.dirty.set(chunk);
+				gc.resource = gr;
+			}
+		}
+	}
+	
+	/**
+	 * Sets how many bytes of chunk geometry may be uploaded each frame.
+	 */
+	public static void setUploadBudget(int bytes) {
+		uploadBudget = bytes;
+	}
+	
+	/**
+	 * Sets how many bytes of textures and chunk geometry may be kept on the
+	 * GPU. Once over, the least recently drawn are evicted at the end of a
+	 * frame, and reloaded when they are next drawn. Textures packed into an
+	 * atlas are counted but never evicted.
+	 */
+	public static void setGpuMemoryBudget(long bytes) {
+		gpuMemoryBudget = bytes;
+	}
+	
+	public static long getGpuMemoryBudget() {
+		return gpuMemoryBudget;
+	}
+	
+	/**
+	 * Gets the estimated bytes of textures and chunk geometry on the GPU.
+	 */
+	public static long getGpuBytes() {
+		return gpuBytes;
+	}
+	
+	/**
+	 * Gets the number of texture and chunk draws that found them resident.
+	 */
+	public static long getResidencyHits() {
+		return residencyHits;
+	}
+	
+	/**
+	 * Gets the number of texture and chunk draws that had to reload them.
+	 */
+	public static long getResidencyMisses() {
+		return residencyMisses;
+	}
+	
+	/**
+	 * Gets the number of textures and chunks evicted.
+	 */
+	public static long getEvictions() {
+		return evictions;
+	}
+	
+	/**
+	 * Sets the distance beyond which chunks are not drawn.
+	 */
+	public static void setDrawDistance(float distance) {
+		drawDistance = distance;
+	}
+	
+	public static float getDrawDistance() {
+		return drawDistance;
+	}
+	
+	/**
+	 * Gets the number of chunks drawn during the last frame.
+	 */
+	public static int getChunksVisible() {
+		return chunksVisible;
+	}
+	
+	/**
+	 * Gets the number of non-empty chunks outside the frustum or draw distance
+	 * during the last frame.
+	 */
+	public static int getChunksCulled() {
+		return chunksCulled;
+	}
+	
+	/**
+	 * Gets the number of empty chunks skipped during the last frame.
+	 */
+	public static int getChunksEmpty() {
+		return chunksEmpty;
+	}
+	
+	/**
+	 * Gets the number of chunks queued for rebuilding during the last frame.
+	 */
+	public static int getChunksRebuilt() {
+		return chunksRebuilt;
+	}
+	
+	/**
+	 * Gets the number of rebuilt chunks uploaded during the last frame.
+	 */
+	public static int getChunksUploaded() {
+		return chunksUploaded;
+	}
+	
+	/**
+	 * Gets the number of chunks still being built by workers.
+	 */
+	public static int getChunksPending() {
+		return chunkBuilder.getPendingCount();
+	}
+	
+	/**
+	 * Gets the render timings and counters for recent frames.
+	 */
+	public static RenderStats getStats() {
+		return stats;
+	}
+	
+	/**
+	 * Called at start of the drawing phase.
+	 */
+	public static void render() {
+		stats.beginFrame();
+		frameNumber++;
+		
+		backend.clear();
+
+		// Upload textures decoded in the background
+		textureLoader.uploadDecoded();
+		stats.endPhase(RenderStats.PHASE_TEXTURES);
+
+		// Index changed entities, marking the chunks they left and entered
+		stats.count(RenderStats.COUNT_ENTITIES, renderSet.size());
+		for (int i = 0; i < renderSet.size(); i++) {
+			int slot = renderSet.get(i);
+			Entity e = slotEntities[slot];
+			
+			if (e != null) {
+				indexEntity(slot, e, e.getPosition().calcChunk());
+			}
+		}
+		renderSet.clear();
+		
+		if (snapshots != null) {
+			applySnapshot(snapshots.acquire());
+		}
+		stats.endPhase(RenderStats.PHASE_INDEX);
+
+		// Rebuild dirty chunks only
+		chunksRebuilt = 0;
+		for (int i = 0; i < chunksList.size(); i++) {
+			GraphicChunks gc = chunksList.get(i);
+			if (gc.dirty.isEmpty() && !gc.regather) {
+				continue;
+			}
+			
+			if (gc.instances != null) {
+				gatherInstances(gc);
+			} else {
+				rebuildChunks(gc);
+			}
+		}
+		stats.count(RenderStats.COUNT_CHUNKS_REBUILT, chunksRebuilt);
+		stats.endPhase(RenderStats.PHASE_REBUILD);
+		
+		uploadChunks();
+		stats.count(RenderStats.COUNT_CHUNKS_UPLOADED, chunksUploaded);
+		stats.endPhase(RenderStats.PHASE_UPLOAD);
+
+		backend.viewFrom(projectionMatrix, modelviewMatrix);
+		frustum.set(projectionMatrix, modelviewMatrix);
+		stats.endPhase(RenderStats.PHASE_CAMERA);
+		
+		chunksVisible = 0;
+		chunksCulled = 0;
+		chunksEmpty = 0;
+
+		backend.beginDraw();
+
+		// Texture graphics first, then function graphics, grouped by state
+		if (drawOrderDirty) {
+			drawOrder = chunksList.toArray(new GraphicChunks[chunksList.size()]);
+			Arrays.sort(drawOrder, DRAW_ORDER);
+			drawOrderDirty = false;
+		}
+		
+		GraphicChunks bound = null;
+		for (int i = 0; i < drawOrder.length; i++) {
+			GraphicChunks gc = drawOrder[i];
+			if (gc.instances != null) {
+				bound = drawInstances(gc, bound);
+			} else if (gc.lists != null) {
+				bound = drawLists(gc, bound);
+			} else {
+				bound = drawGraphic(gc, bound);
+			}
+		}
+		
+		if (bound != null) {
+			backend.endGraphic(bound.graphic);
+		}
+
+		backend.endDraw();
+		
+		if (gpuBytes > gpuMemoryBudget) {
+			evictLeastRecentlyDrawn();
+		}
+		
+		stats.count(RenderStats.COUNT_DRAW_CALLS, chunksVisible);
+		stats.endPhase(RenderStats.PHASE_DRAW);
+		stats.endFrame();
+	}
+	
+	/**
+	 * Indexes the entities in a snapshot whose position changed since it was
+	 * last indexed, and works out how far between ticks this frame is.
+	 */
+	private static void applySnapshot(EntitySnapshot s) {
+		snapshot = s;
+		snapshotAlpha = s.getAlpha(System.nanoTime());
+		
+		if (snapshotIndices.length < slotEntities.length) {
+			appliedPositions = Arrays.copyOf(appliedPositions, slotEntities.length * 3);
+			snapshotIndices = Arrays.copyOf(snapshotIndices, slotEntities.length);
+			snapshotFrames = Arrays.copyOf(snapshotFrames, slotEntities.length);
+		}
+		
+		boolean moving = false;
+		
+		for (int i = 0; i < s.getCount(); i++) {
+			int slot = s.getSlot(i);
+			Entity e = slot < slotCount ? slotEntities[slot] : null;
+			
+			if (e == null) {
+				continue;
+			}
+			
+			snapshotIndices[slot] = i;
+			snapshotFrames[slot] = frameNumber;
+			moving |= s.isMoving(i);
+			
+			int p = slot * 3;
+			float x = s.getX(i), y = s.getY(i), z = s.getZ(i);
+			if (appliedPositions[p] != x || appliedPositions[p + 1] != y || appliedPositions[p + 2] != z) {
+				appliedPositions[p] = x;
+				appliedPositions[p + 1] = y;
+				appliedPositions[p + 2] = z;
+				indexEntity(slot, e, s.getChunk(i));
+			}
+		}
+		
+		stats.count(RenderStats.COUNT_ENTITIES, s.getCount());
+		
+		// Instanced graphics follow entities between ticks, so regather them
+		if (moving) {
+			for (int i = 0; i < chunksList.size(); i++) {
+				GraphicChunks gc = chunksList.get(i);
+				if (gc.instances != null && gc.instances.getCount() > 0) {
+					gc.regather = true;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Sets the position drawBox records an entity at: from the snapshot if
+	 * it is in the current one, otherwise its live position.
+	 * @param
+	 * 			alpha		How far between the snapshot's ticks to take it
+	 */
+	private static void setEntityPosition(int slot, Entity e, float alpha) {
+		recordedEntity = e;
+		if (snapshot != null && snapshotFrames[slot] == frameNumber) {
+			int i = snapshotIndices[slot];
+			entityX = snapshot.interpolate(i, 0, alpha);
+			entityY = snapshot.interpolate(i, 1, alpha);
+			entityZ = snapshot.interpolate(i, 2, alpha);
+		} else {
+			Position p = e.getPosition();
+			entityX = p.x;
+			entityY = p.y;
+			entityZ = p.z;
+		}
+	}
+	
+	/**
+	 * Moves an entity to a chunk in the index of each of its graphics,
+	 * marking both its old and new chunk dirty.
+	 */
+	private static void indexEntity(int slot, Entity e, int chunk) {
+		List<GraphicResource> resources = e.getGraphicResources();
+		
+		for (int i = 0; i < resources.size(); i++) {
+			GraphicResource gr = resources.get(i);
+			GraphicChunks gc = chunksMap.get(gr.getGraphic());
+			
+			if (gc != null) {
+				int oldChunk = gc.index.getChunk(slot);
+				if (oldChunk >= 0) {
+					gc.dirty.set(oldChunk);
+				}
+				
+				gc.dirty.set(chunk);
+				gc.index.put(slot, chunk);
+				gc.resource = gr;
+			}
+		}
+	}
+	
+	/**
+	 * Records a graphic's dirty chunks from the entities indexed under them,
+	 * and queues them to be built by the workers.
+	 */
+	private static void rebuildChunks(GraphicChunks gc) {
+		BitSet dirty = gc.dirty;
+		ChunkIndex index = gc.index;
+		
+		if (gc.lists != null) {
+			rebuildLists(gc);
+			return;
+		}
+		
+		for (int chunk = dirty.nextSetBit(0); chunk >= 0; chunk = dirty.nextSetBit(chunk + 1)) {
+			recording = chunkBuilder.acquire(gc.graphic, chunk, ++gc.generations[chunk],
+					greedyMeshing, gc.uvTransform);
+			recordingChunk = chunk;
+			for (int node = index.first(chunk); node >= 0; node = index.next(node)) {
+				int slot = index.getSlot(node);
+				setEntityPosition(slot, slotEntities[slot], 1f);
+				slotEntities[slot].draw(gc.resource);
+			}
+			
+			chunkBuilder.submit(recording);
+			recording = null;
+			recordingChunk = -1;
+			
+			chunksRebuilt++;
+		}
+		
+		dirty.clear();
+	}
+	
+	/**
+	 * Compiles a display-listed graphic's dirty chunks into their display
+	 * lists, on the render thread. Chunks left with no entities are skipped
+	 * when drawing, keeping their list for reuse.
+	 */
+	private static void rebuildLists(GraphicChunks gc) {
+		BitSet dirty = gc.dirty;
+		ChunkIndex index = gc.index;
+		
+		listing = gc;
+		for (int chunk = dirty.nextSetBit(0); chunk >= 0; chunk = dirty.nextSetBit(chunk + 1)) {
+			if (index.first(chunk) < 0) {
+				gc.listed.clear(chunk);
+				continue;
+			}
+			
+			if (gc.lists[chunk] == 0) {
+				gc.lists[chunk] = backend.createList();
+			}
+			
+			backend.beginList(gc.lists[chunk]);
+			recordingChunk = chunk;
+			for (int node = index.first(chunk); node >= 0; node = index.next(node)) {
+				int slot = index.getSlot(node);
+				setEntityPosition(slot, slotEntities[slot], 1f);
+				slotEntities[slot].draw(gc.resource);
+			}
+			backend.endList();
+			recordingChunk = -1;
+			
+			gc.listed.set(chunk);
+			chunksRebuilt++;
+		}
+		listing = null;
+		
+		dirty.clear();
+	}
+	
+	/**
+	 * Gathers the positions of an instanced graphic's entities, chunk by
+	 * chunk, and streams them to its instance buffer. The shared mesh is
+	 * recorded from the first entity found if it has not been yet.
+	 */
+	private static void gatherInstances(GraphicChunks gc) {
+		InstanceBatch batch = gc.instances;
+		ChunkIndex index = gc.index;
+		int chunks = World.CHUNK * World.CHUNK * World.CHUNK;
+		
+		batch.clear();
+		for (int chunk = 0; chunk < chunks; chunk++) {
+			int node = index.first(chunk);
+			if (node < 0) {
+				continue;
+			}
+			
+			if (gc.templateVertices == 0) {
+				buildTemplate(gc, index.getSlot(node));
+			}
+			
+			batch.beginRange();
+			for (; node >= 0; node = index.next(node)) {
+				int slot = index.getSlot(node);
+				setEntityPosition(slot, slotEntities[slot], snapshotAlpha);
+				batch.add(entityX, entityY, entityZ);
+			}
+			batch.endRange(gc.templateBounds);
+		}
+		
+		if (gc.instanceBuffer == 0) {
+			gc.instanceBuffer = acquireBuffer();
+		}
+		backend.streamData(gc.instanceBuffer, batch.getBuffer());
+		gpuBytes += batch.getByteCount() - gc.instanceBytes;
+		gc.instanceBytes = batch.getByteCount();
+		
+		gc.dirty.clear();
+		gc.regather = false;
+	}
+	
+	/**
+	 * Records an entity's boxes relative to its position, as the mesh shared
+	 * by every instance of a graphic. Small, so built on the render thread.
+	 */
+	private static void buildTemplate(GraphicChunks gc, int slot) {
+		Entity e = slotEntities[slot];
+		setEntityPosition(slot, e, 1f);
+		
+		recording = chunkBuilder.acquire(gc.graphic, 0, 0, false, gc.uvTransform);
+		recordingX = entityX;
+		recordingY = entityY;
+		recordingZ = entityZ;
+		e.draw(gc.resource);
+		recordingX = recordingY = recordingZ = 0f;
+		
+		recording.build(templateMesh, null);
+		chunkBuilder.release(recording);
+		recording = null;
+		
+		if (gc.templateBuffer == 0) {
+			gc.templateBuffer = acquireBuffer();
+		}
+		backend.bufferData(gc.templateBuffer, templateMesh.getBuffer());
+		gc.templateVertices = templateMesh.getVertexCount();
+		templateMesh.getBounds(gc.templateBounds, 0);
+		gpuBytes += templateMesh.getByteCount();
+	}
+	
+	/**
+	 * Uploads chunks built by the workers, up to the per-frame upload budget.
+	 * Chunks rebuilt again since their snapshot was taken are dropped.
+	 */
+	private static void uploadChunks() {
+		int bytes = 0;
+		chunksUploaded = 0;
+		
+		ChunkSnapshot snapshot;
+		while (bytes < uploadBudget && (snapshot = chunkBuilder.poll()) != null) {
+			GraphicChunks gc = chunksMap.get(snapshot.getGraphic());
+			int chunk = snapshot.getChunk();
+			
+			if (gc.generations[chunk] == snapshot.getGeneration()) {
+				ChunkMesh mesh = snapshot.getMesh();
+				ChunkTable table = gc.table;
+				int slot = table.find(chunk);
+				
+				if (mesh.getVertexCount() > 0) {
+					if (slot < 0) {
+						slot = table.add(chunk, acquireBuffer());
+					}
+					
+					gpuBytes -= chunkBytes(table.getVertexCount(slot));
+					gpuBytes += mesh.getByteCount();
+					
+					backend.bufferData(table.getBuffer(slot), mesh.getBuffer());
+					table.setVertexCount(slot, mesh.getVertexCount());
+					table.setFrame(slot, frameNumber);
+					mesh.getBounds(table.getBounds(), slot * 6);
+					setGreedy(gc, chunk, snapshot.isGreedy());
+				} else if (slot >= 0) {
+					// Chunk emptied - recycle its buffer
+					gpuBytes -= chunkBytes(table.getVertexCount(slot));
+					releaseBuffer(table.remove(chunk));
+					setGreedy(gc, chunk, false);
+				}
+				
+				bytes += mesh.getByteCount();
+				chunksUploaded++;
+			}
+			
+			chunkBuilder.release(snapshot);
+		}
+	}
+	
+	/**
+	 * Draws every non-empty chunk of a graphic that is within the frustum and
+	 * draw distance, one call per chunk. The graphic's function is left
+	 * initialized, and is only finalized when the next graphic drawn cannot
+	 * share its state (see GraphicChunks.canBatchWith). Evicted textures are
+	 * reloaded before drawing, and evicted chunks are queued for rebuilding.
+	 * @param
+	 * 			bound		Graphic whose function is initialized, or null
+	 * @return
+	 * 			Graphic whose function is now initialized, or null
+	 */
+	private static GraphicChunks drawGraphic(GraphicChunks gc, GraphicChunks bound) {
+		ChunkTable table = gc.table;
+		float[] bounds = table.getBounds();
+		float maxDistance = drawDistance * drawDistance;
+		boolean begun = false;
+		
+		chunksEmpty += World.CHUNK * World.CHUNK * World.CHUNK - table.size();
+		
+		for (int i = 0; i < table.size(); i++) {
+			int b = i * 6;
+			
+			if (!frustum.intersects(bounds[b], bounds[b + 1], bounds[b + 2], bounds[b + 3], bounds[b + 4], bounds[b + 5])
+					|| frustum.distanceSquared(bounds[b], bounds[b + 1], bounds[b + 2], bounds[b + 3], bounds[b + 4], bounds[b + 5]) > maxDistance) {
+				chunksCulled++;
+				continue;
+			}
+			
+			int vertices = table.getVertexCount(i);
+			if (vertices <= 0) {
+				// Geometry was evicted - rebuild it, once
+				if (vertices == ChunkTable.EVICTED) {
+					table.setVertexCount(i, ChunkTable.RELOADING);
+					gc.dirty.set(table.getChunk(i));
+					residencyMisses++;
+					stats.count(RenderStats.COUNT_RESIDENCY_MISSES, 1);
+				}
+				continue;
+			}
+			
+			if (!begun) {
+				bound = bindGraphic(gc, bound);
+				begun = true;
+			}
+			
+			backend.drawChunk(table.getBuffer(i), vertices);
+			table.setFrame(i, frameNumber);
+			residencyHits++;
+			stats.count(RenderStats.COUNT_VERTICES, vertices);
+			chunksVisible++;
+		}
+		
+		return bound;
+	}
+	
+	/**
+	 * Draws an instanced graphic, one instanced draw per chunk within the
+	 * frustum and draw distance.
+	 * @see
+	 * 			#drawGraphic
+	 */
+	private static GraphicChunks drawInstances(GraphicChunks gc, GraphicChunks bound) {
+		InstanceBatch batch = gc.instances;
+		float[] bounds = batch.getRangeBounds();
+		float maxDistance = drawDistance * drawDistance;
+		boolean begun = false;
+		
+		chunksEmpty += World.CHUNK * World.CHUNK * World.CHUNK - batch.getRangeCount();
+		
+		if (gc.templateVertices == 0) {
+			return bound;
+		}
+		
+		for (int i = 0; i < batch.getRangeCount(); i++) {
+			int b = i * 6;
+			
+			if (!frustum.intersects(bounds[b], bounds[b + 1], bounds[b + 2], bounds[b + 3], bounds[b + 4], bounds[b + 5])
+					|| frustum.distanceSquared(bounds[b], bounds[b + 1], bounds[b + 2], bounds[b + 3], bounds[b + 4], bounds[b + 5]) > maxDistance) {
+				chunksCulled++;
+				continue;
+			}
+			
+			if (!begun) {
+				bound = bindGraphic(gc, bound);
+				begun = true;
+			}
+			
+			int count = batch.getRangeSize(i);
+			backend.drawInstances(gc.templateBuffer, gc.templateVertices, gc.instanceBuffer,
+					batch.getOffsets(), batch.getRangeStart(i), count);
+			stats.count(RenderStats.COUNT_VERTICES, gc.templateVertices * count);
+			chunksVisible++;
+		}
+		
+		return bound;
+	}
+	
+	/**
+	 * Draws every non-empty display list of a display-listed graphic.
+	 * @see
+	 * 			#drawGraphic
+	 */
+	private static GraphicChunks drawLists(GraphicChunks gc, GraphicChunks bound) {
+		BitSet listed = gc.listed;
+		boolean begun = false;
+		
+		chunksEmpty += World.CHUNK * World.CHUNK * World.CHUNK - listed.cardinality();
+		
+		for (int chunk = listed.nextSetBit(0); chunk >= 0; chunk = listed.nextSetBit(chunk + 1)) {
+			if (!begun) {
+				bound = bindGraphic(gc, bound);
+				begun = true;
+			}
+			
+			backend.callList(gc.lists[chunk]);
+			chunksVisible++;
+		}
+		
+		return bound;
+	}
+	
+	/**
+	 * Gets a graphic ready to draw: reloads its texture if it was evicted,
+	 * and initializes its function unless the bound graphic shares its state.
+	 * @return
+	 * 			The graphic, now bound
+	 */
+	private static GraphicChunks bindGraphic(GraphicChunks gc, GraphicChunks bound) {
+		if (gc.textureEvicted) {
+			reloadTexture(gc);
+		} else if (gc.textureBytes > 0) {
+			residencyHits++;
+		}
+		gc.textureFrame = frameNumber;
+		
+		if (bound == null || !gc.canBatchWith(bound)) {
+			if (bound != null) {
+				backend.endGraphic(bound.graphic);
+			}
+			backend.beginGraphic(gc.graphic);
+			if (gc.program != 0) {
+				backend.useProgram(gc.program);
+			}
+		}
+		
+		return gc;
+	}
+	
+	/**
+	 * Gets the bytes of a chunk's geometry from its vertex count (which is
+	 * not positive once evicted).
+	 */
+	private static long chunkBytes(int vertices) {
+		return vertices > 0 ? (long) vertices * ChunkMesh.BYTES_PER_VERTEX : 0;
+	}
+	
+	/**
+	 * Uploads an evicted texture again, from the texture cache.
+	 */
+	private static void reloadTexture(GraphicChunks gc) {
+		residencyMisses++;
+		stats.count(RenderStats.COUNT_RESIDENCY_MISSES, 1);
+		gc.textureEvicted = false;
+		
+		try {
+			TextureData data = decodeTexture(gc.filename);
+			backend.textureData(gc.textureId, data.getWidth(), data.getHeight(), data.hasAlpha(), data.getPixels());
+			gpuBytes += gc.textureBytes;
+			stats.count(RenderStats.COUNT_TEXTURE_UPLOADS, 1);
+		} catch (IOException e) {
+			// Leave it empty rather than retrying every frame
+			e.printStackTrace();
+			gc.filename = null;
+		}
+	}
+	
+	/**
+	 * Evicts textures and chunk geometry, least recently drawn first, until
+	 * the GPU memory budget is met or only resources drawn this frame remain.
+	 * Each pass scans for the oldest frame stamp, then evicts everything
+	 * with that stamp, so nothing is allocated.
+	 */
+	private static void evictLeastRecentlyDrawn() {
+		while (gpuBytes > gpuMemoryBudget) {
+			int oldest = frameNumber;
+			
+			for (int i = 0; i < chunksList.size(); i++) {
+				GraphicChunks gc = chunksList.get(i);
+				ChunkTable table = gc.table;
+				
+				if (gc.filename != null && !gc.textureEvicted && gc.textureFrame < oldest) {
+					oldest = gc.textureFrame;
+				}
+				for (int slot = 0; slot < table.size(); slot++) {
+					if (table.getVertexCount(slot) > 0 && table.getFrame(slot) < oldest) {
+						oldest = table.getFrame(slot);
+					}
+				}
+			}
+			
+			if (oldest == frameNumber) {
+				return;
+			}
+			
+			for (int i = 0; i < chunksList.size() && gpuBytes > gpuMemoryBudget; i++) {
+				GraphicChunks gc = chunksList.get(i);
+				ChunkTable table = gc.table;
+				
+				for (int slot = 0; slot < table.size() && gpuBytes > gpuMemoryBudget; slot++) {
+					if (table.getVertexCount(slot) > 0 && table.getFrame(slot) == oldest) {
+						gpuBytes -= chunkBytes(table.getVertexCount(slot));
+						backend.bufferData(table.getBuffer(slot), null);
+						table.setVertexCount(slot, ChunkTable.EVICTED);
+						evictions++;
+						stats.count(RenderStats.COUNT_EVICTIONS, 1);
+					}
+				}
+				
+				if (gpuBytes > gpuMemoryBudget && gc.filename != null && !gc.textureEvicted && gc.textureFrame == oldest) {
+					gpuBytes -= gc.textureBytes;
+					backend.textureData(gc.textureId, 0, 0, false, null);
+					gc.textureEvicted = true;
+					evictions++;
+					stats.count(RenderStats.COUNT_EVICTIONS, 1);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Records a box's exposed faces into the chunk currently being rebuilt,
+	 * at the entity's position (for the entity being recorded, the position
+	 * from the snapshot). Only valid from within Entity.draw while its chunk
+	 * is rebuilt. Chunks are built into vertex buffers from these boxes
+	 * alone, so draw() must not make other GL calls unless its graphic is
+	 * display-listed (see setDisplayListed).
+	 */
+	public static void drawBox(Entity e, Graphic g, int top, int front, int left, int right, int back, int bottom) {
+		float x = entityX, y = entityY, z = entityZ;
+		if (e != recordedEntity) {
+			// Another entity drawn by the one being recorded
+			Position p = e.getPosition();
+			x = p.x;
+			y = p.y;
+			z = p.z;
+		}
+		
+		if (listing != null) {
+			listMesh.clear();
+			listMesh.setUVTransform(listing.uvTransform);
+			listMesh.addBox(x, y, z, exposedFaces(e, x, y, z), g.getWidth(),
+					top, front, left, right, back, bottom);
+			if (listMesh.getVertexCount() > 0) {
+				backend.drawVertices(listMesh.getBuffer(), listMesh.getVertexCount());
+			}
+			return;
+		}
+		
+		if (recording == null) {
+			throw new IllegalStateException("drawBox called outside Entity.draw during a chunk rebuild");
+		}
+		
+		recording.addBox(x - recordingX, y - recordingY, z - recordingZ,
+				exposedFaces(e, x, y, z), top, front, left, right, back, bottom);
+	}
+	
+	/**
+	 * Gets the faces of a box at the given position that aren't against a
+	 * solid cell, from the chunk's occupancy if it has one.
+	 */
+	private static int exposedFaces(Entity e, float x, float y, float z) {
+		ChunkOccupancy occupancy = occupancies != null && recordingChunk >= 0 ? occupancies[recordingChunk] : null;
+		
+		if (occupancy != null) {
+			int size = occupancy.getSize();
+			int cx = cell(x, size);
+			int cy = cell(y, size);
+			int cz = cell(z, size);
+			
+			if (occupancy.isSolid(cx, cy, cz)) {
+				return occupancy.getFaces(cx, cy, cz);
+			}
+		}
+		
+		return e.getExposedFaces();
+	}
+	
+	/**
+	 * Gets the cell a position falls in, within a chunk of the given size.
+	 */
+	private static int cell(float position, int size) {
+		int cell = (int) Math.floor(position) % size;
+		return cell < 0 ? cell + size : cell;
+	}
+
+	/**
+	 * Converts an image's pixels to a flipped BGRA buffer for OpenGL, in one
+	 * pass straight into a direct buffer. Each row is swizzled a whole pixel
+	 * at a time and written to its flipped position. Images other than 4-byte
+	 * ABGR or int ARGB are converted through getRGB, so every image comes out
+	 * with four bytes per pixel.
+	 * @param
+	 * 			img			Image to convert
+	 * @return
+	 * 			Direct buffer of width * height BGRA pixels, positioned at 0
+	 */
+	static ByteBuffer convertPixels(BufferedImage img) {
+		int width = img.getWidth();
+		int height = img.getHeight();
+
+		ByteBuffer buffer = BufferUtils.createByteBuffer(width * height * 4);
+		IntBuffer out = buffer.duplicate().order(ByteOrder.BIG_ENDIAN).asIntBuffer();
+		int[] row = new int[width];
+
+		switch (img.getType()) {
+		case BufferedImage.TYPE_4BYTE_ABGR: {
+			// Bytes are A, B, G, R - rotate each big-endian pixel left a byte to B, G, R, A
+			byte[] pixels = ((DataBufferByte)img.getRaster().getDataBuffer()).getData();
+			IntBuffer in = ByteBuffer.wrap(pixels).asIntBuffer();
+
+			for (int y = 0; y < height; y++) {
+				in.position(y * width);
+				in.get(row);
+				for (int x = 0; x < width; x++) {
+					row[x] = Integer.rotateLeft(row[x], 8);
+				}
+				out.position((height - y - 1) * width);
+				out.put(row);
+			}
+			break;
+		}
+		case BufferedImage.TYPE_INT_ARGB: {
+			// Ints are 0xAARRGGBB - byte-reverse each to B, G, R, A
+			int[] pixels = ((DataBufferInt)img.getRaster().getDataBuffer()).getData();
+
+			for (int y = 0; y < height; y++) {
+				System.arraycopy(pixels, y * width, row, 0, width);
+				for (int x = 0; x < width; x++) {
+					row[x] = Integer.reverseBytes(row[x]);
+				}
+				out.position((height - y - 1) * width);
+				out.put(row);
+			}
+			break;
+		}
+		default:
+			// Anything else goes through the colour model as 0xAARRGGBB
+			for (int y = 0; y < height; y++) {
+				img.getRGB(0, y, width, 1, row, 0, width);
+				for (int x = 0; x < width; x++) {
+					row[x] = Integer.reverseBytes(row[x]);
+				}
+				out.position((height - y - 1) * width);
+				out.put(row);
 			}
+			break;
 		}
 
-		return newPixels;
+		return buffer;
 	}
 }
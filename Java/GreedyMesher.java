@@ -0,0 +1,194 @@
+package engine;
+
+import java.util.Arrays;
+
+/**
+ * Merges the exposed faces of a chunk's boxes into as few quads as possible.
+ * Boxes are recorded with addBox, then build emits one quad per maximal
+ * rectangle of adjacent, coplanar faces that share a tile.
+ * <p>
+ * Merged quads repeat their tile, so they are emitted with
+ * <code>ChunkMesh.addTiledFace</code>. The shader is expected to map them
+ * back into the tile with <code>mix(tile.xy, tile.zw, fract(uv))</code>
+ * whenever the tile rectangle is non-zero, which gives the same texels as
+ * drawing each face on its own. Makes no GL calls.
+ *
+ * @author Joel
+ */
+public final class GreedyMesher {
+	// Plane axes for each face: normal, u and v (0 = x, 1 = y, 2 = z)
+	private static final int[] NORMAL_AXIS = { 1, 2, 0, 0, 2, 1 };
+	private static final int[] U_AXIS = { 0, 0, 2, 2, 0, 0 };
+	private static final int[] V_AXIS = { 2, 1, 1, 1, 1, 2 };
+
+	// Recorded boxes
+	private int count;
+	private int[] positions = new int[3 * 256];
+	private int[] faces = new int[256];
+	private int[] tiles = new int[6 * 256];
+
+	// Scratch space, reused between builds
+	private int[] grid = new int[0];
+	private int[] mask = new int[0];
+	private final int[] min = new int[3];
+	private final int[] size = new int[3];
+	private final int[] cell = new int[3];
+	private final float[] box = new float[6];
+	private final float[] rect = new float[4];
+
+	/**
+	 * Forgets all recorded boxes.
+	 */
+	public void clear() {
+		count = 0;
+	}
+
+	public int getBoxCount() {
+		return count;
+	}
+
+	/**
+	 * Records a unit box. Takes the same arguments as ChunkMesh.addBox.
+	 */
+	public void addBox(float x, float y, float z, int exposedFaces,
+			int top, int front, int left, int right, int back, int bottom) {
+		if (exposedFaces == 0) {
+			return;
+		}
+
+		if (count == faces.length) {
+			positions = Arrays.copyOf(positions, positions.length * 2);
+			faces = Arrays.copyOf(faces, faces.length * 2);
+			tiles = Arrays.copyOf(tiles, tiles.length * 2);
+		}
+
+		positions[count * 3 + 0] = (int) Math.floor(x);
+		positions[count * 3 + 1] = (int) Math.floor(y);
+		positions[count * 3 + 2] = (int) Math.floor(z);
+		faces[count] = exposedFaces;
+		tiles[count * 6 + ChunkMesh.FACE_TOP] = top;
+		tiles[count * 6 + ChunkMesh.FACE_FRONT] = front;
+		tiles[count * 6 + ChunkMesh.FACE_LEFT] = left;
+		tiles[count * 6 + ChunkMesh.FACE_RIGHT] = right;
+		tiles[count * 6 + ChunkMesh.FACE_BACK] = back;
+		tiles[count * 6 + ChunkMesh.FACE_BOTTOM] = bottom;
+		count++;
+	}
+
+	/**
+	 * Emits merged quads for every recorded box into a mesh.
+	 * @param
+	 * 			mesh		Mesh to add quads to
+	 * 			texWidth	Width of the texture the tiles are taken from
+	 */
+	public void build(ChunkMesh mesh, int texWidth) {
+		if (count == 0) {
+			return;
+		}
+
+		// Find bounds of the recorded boxes
+		Arrays.fill(min, Integer.MAX_VALUE);
+		Arrays.fill(size, Integer.MIN_VALUE);
+		for (int i = 0; i < count; i++) {
+			for (int a = 0; a < 3; a++) {
+				min[a] = Math.min(min[a], positions[i * 3 + a]);
+				size[a] = Math.max(size[a], positions[i * 3 + a]);
+			}
+		}
+		for (int a = 0; a < 3; a++) {
+			size[a] = size[a] - min[a] + 1;
+		}
+
+		// Fill grid with box index + 1 (0 is empty)
+		int cells = size[0] * size[1] * size[2];
+		if (grid.length < cells) {
+			grid = new int[cells];
+		} else {
+			Arrays.fill(grid, 0, cells, 0);
+		}
+		for (int i = 0; i < count; i++) {
+			grid[index(positions[i * 3 + 0] - min[0],
+					positions[i * 3 + 1] - min[1],
+					positions[i * 3 + 2] - min[2])] = i + 1;
+		}
+
+		for (int face = 0; face < 6; face++) {
+			buildFace(mesh, face, texWidth);
+		}
+	}
+
+	private void buildFace(ChunkMesh mesh, int face, int texWidth) {
+		int n = NORMAL_AXIS[face], u = U_AXIS[face], v = V_AXIS[face];
+		int width = size[u], height = size[v];
+
+		if (mask.length < width * height) {
+			mask = new int[width * height];
+		}
+
+		for (int slice = 0; slice < size[n]; slice++) {
+			// Build mask of tile + 1 for each exposed face in this slice
+			cell[n] = slice;
+			for (int j = 0; j < height; j++) {
+				cell[v] = j;
+				for (int i = 0; i < width; i++) {
+					cell[u] = i;
+					int b = grid[index(cell[0], cell[1], cell[2])] - 1;
+					mask[j * width + i] = b >= 0 && (faces[b] & (1 << face)) != 0
+							? tiles[b * 6 + face] + 1 : 0;
+				}
+			}
+
+			// Greedily take the largest rectangles of matching tiles
+			for (int j = 0; j < height; j++) {
+				for (int i = 0; i < width;) {
+					int m = mask[j * width + i];
+					if (m == 0) {
+						i++;
+						continue;
+					}
+
+					int w = 1;
+					while (i + w < width && mask[j * width + i + w] == m) {
+						w++;
+					}
+
+					int h = 1;
+					grow: while (j + h < height) {
+						for (int k = 0; k < w; k++) {
+							if (mask[(j + h) * width + i + k] != m) {
+								break grow;
+							}
+						}
+						h++;
+					}
+
+					for (int l = 0; l < h; l++) {
+						Arrays.fill(mask, (j + l) * width + i, (j + l) * width + i + w, 0);
+					}
+
+					emit(mesh, face, slice, i, j, w, h, m - 1, texWidth);
+					i += w;
+				}
+			}
+		}
+	}
+
+	private void emit(ChunkMesh mesh, int face, int slice, int i, int j,
+			int w, int h, int tile, int texWidth) {
+		int n = NORMAL_AXIS[face], u = U_AXIS[face], v = V_AXIS[face];
+
+		box[n] = min[n] + slice;
+		box[n + 3] = box[n] + 1f;
+		box[u] = min[u] + i;
+		box[u + 3] = box[u] + w;
+		box[v] = min[v] + j;
+		box[v + 3] = box[v] + h;
+
+		ChunkMesh.getTileRect(tile, texWidth, rect);
+		mesh.addTiledFace(face, box[0], box[1], box[2], box[3], box[4], box[5], w, h, rect);
+	}
+
+	private int index(int x, int y, int z) {
+		return (z * size[1] + y) * size[0] + x;
+	}
+}
@@ -0,0 +1,149 @@
+package engine;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import org.lwjgl.BufferUtils;
+
+/**
+ * The instances of a graphic whose entities all share one mesh, gathered
+ * chunk by chunk so each chunk's instances are a contiguous range that can
+ * be culled and drawn with a single instanced draw. Instance offsets are
+ * kept in a direct buffer of three floats each, ready to stream to the GPU.
+ * Makes no GL calls.
+ *
+ * @author Joel
+ */
+public final class InstanceBatch {
+	public static final int BYTES_PER_INSTANCE = 3 * 4;
+
+	// Instance offsets
+	private ByteBuffer bytes = BufferUtils.createByteBuffer(256 * BYTES_PER_INSTANCE);
+	private FloatBuffer offsets = bytes.asFloatBuffer();
+	private int count;
+
+	// Ranges of instances, one per non-empty chunk
+	private int ranges;
+	private int[] rangeStarts = new int[16];
+	private int[] rangeCounts = new int[16];
+	private float[] rangeBounds = new float[16 * 6];
+
+	// Bounds of the range being gathered
+	private float minX, minY, minZ, maxX, maxY, maxZ;
+
+	/**
+	 * Empties the batch.
+	 */
+	public void clear() {
+		count = 0;
+		ranges = 0;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public int getRangeCount() {
+		return ranges;
+	}
+
+	public int getRangeStart(int range) {
+		return rangeStarts[range];
+	}
+
+	public int getRangeSize(int range) {
+		return rangeCounts[range];
+	}
+
+	/**
+	 * Gets the bounding boxes of all ranges, six floats per range.
+	 */
+	public float[] getRangeBounds() {
+		return rangeBounds;
+	}
+
+	/**
+	 * Starts a new range of instances.
+	 */
+	public void beginRange() {
+		if (ranges == rangeStarts.length) {
+			rangeStarts = Arrays.copyOf(rangeStarts, ranges * 2);
+			rangeCounts = Arrays.copyOf(rangeCounts, ranges * 2);
+			rangeBounds = Arrays.copyOf(rangeBounds, ranges * 2 * 6);
+		}
+
+		rangeStarts[ranges] = count;
+		minX = minY = minZ = Float.POSITIVE_INFINITY;
+		maxX = maxY = maxZ = Float.NEGATIVE_INFINITY;
+	}
+
+	/**
+	 * Adds an instance to the current range.
+	 */
+	public void add(float x, float y, float z) {
+		if (count * 3 == offsets.capacity()) {
+			ByteBuffer grown = BufferUtils.createByteBuffer(bytes.capacity() * 2);
+			bytes.position(0).limit(count * BYTES_PER_INSTANCE);
+			grown.put(bytes);
+			bytes = grown;
+			bytes.clear();
+			offsets = bytes.asFloatBuffer();
+		}
+
+		offsets.put(count * 3 + 0, x);
+		offsets.put(count * 3 + 1, y);
+		offsets.put(count * 3 + 2, z);
+		count++;
+
+		minX = Math.min(minX, x);
+		minY = Math.min(minY, y);
+		minZ = Math.min(minZ, z);
+		maxX = Math.max(maxX, x);
+		maxY = Math.max(maxY, y);
+		maxZ = Math.max(maxZ, z);
+	}
+
+	/**
+	 * Ends the current range, dropping it if it is empty.
+	 * @param
+	 * 			meshBounds	Bounds of the shared mesh, added to the instances'
+	 */
+	public void endRange(float[] meshBounds) {
+		int n = count - rangeStarts[ranges];
+		if (n == 0) {
+			return;
+		}
+
+		int b = ranges * 6;
+		rangeCounts[ranges] = n;
+		rangeBounds[b + 0] = minX + meshBounds[0];
+		rangeBounds[b + 1] = minY + meshBounds[1];
+		rangeBounds[b + 2] = minZ + meshBounds[2];
+		rangeBounds[b + 3] = maxX + meshBounds[3];
+		rangeBounds[b + 4] = maxY + meshBounds[4];
+		rangeBounds[b + 5] = maxZ + meshBounds[5];
+		ranges++;
+	}
+
+	/**
+	 * Gets the instance offsets, three floats each.
+	 */
+	public FloatBuffer getOffsets() {
+		return offsets;
+	}
+
+	/**
+	 * Gets the instance offsets as bytes, positioned at 0 and limited to the
+	 * instance count.
+	 */
+	public ByteBuffer getBuffer() {
+		ByteBuffer buffer = bytes.duplicate();
+		buffer.position(0).limit(count * BYTES_PER_INSTANCE);
+		return buffer;
+	}
+
+	public int getByteCount() {
+		return count * BYTES_PER_INSTANCE;
+	}
+}
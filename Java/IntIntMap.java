@@ -0,0 +1,137 @@
+package engine;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressed hash map from non-negative int keys to int values, so hot
+ * paths can look up chunks and entity slots without boxing. Kept at most half
+ * full, and removal shifts entries back rather than leaving tombstones.
+ *
+ * @author Joel
+ */
+public final class IntIntMap {
+	private static final int EMPTY = -1;
+
+	// Keys and values interleaved
+	private int[] table;
+	private int mask;
+	private int size;
+
+	public IntIntMap() {
+		this(16);
+	}
+
+	public IntIntMap(int capacity) {
+		int n = Integer.highestOneBit(Math.max(capacity, 4) - 1) << 2;
+		table = new int[n * 2];
+		mask = n - 1;
+		Arrays.fill(table, EMPTY);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Gets a key's value.
+	 * @return
+	 * 			The value, or missing if the key is not in the map
+	 */
+	public int get(int key, int missing) {
+		for (int i = hash(key);; i = (i + 1) & mask) {
+			int k = table[i * 2];
+			if (k == key) {
+				return table[i * 2 + 1];
+			}
+			if (k == EMPTY) {
+				return missing;
+			}
+		}
+	}
+
+	/**
+	 * Sets a key's value, adding the key if it is not in the map.
+	 */
+	public void put(int key, int value) {
+		int i = hash(key);
+		while (table[i * 2] != EMPTY && table[i * 2] != key) {
+			i = (i + 1) & mask;
+		}
+
+		if (table[i * 2] == EMPTY) {
+			if ((size + 1) * 2 > mask + 1) {
+				grow();
+				put(key, value);
+				return;
+			}
+			size++;
+		}
+
+		table[i * 2] = key;
+		table[i * 2 + 1] = value;
+	}
+
+	/**
+	 * Removes a key.
+	 * @return
+	 * 			The key's value, or missing if the key was not in the map
+	 */
+	public int remove(int key, int missing) {
+		int i = hash(key);
+		while (table[i * 2] != key) {
+			if (table[i * 2] == EMPTY) {
+				return missing;
+			}
+			i = (i + 1) & mask;
+		}
+
+		int value = table[i * 2 + 1];
+		size--;
+
+		// Shift back later entries of the same run so lookups never stop early
+		int j = i;
+		while (true) {
+			j = (j + 1) & mask;
+			int k = table[j * 2];
+			if (k == EMPTY) {
+				break;
+			}
+
+			// Move the entry back if its home is not between i and j
+			int home = hash(k);
+			if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+				table[i * 2] = k;
+				table[i * 2 + 1] = table[j * 2 + 1];
+				i = j;
+			}
+		}
+		table[i * 2] = EMPTY;
+
+		return value;
+	}
+
+	public void clear() {
+		Arrays.fill(table, EMPTY);
+		size = 0;
+	}
+
+	private int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	private void grow() {
+		int[] old = table;
+
+		table = new int[old.length * 2];
+		mask = table.length / 2 - 1;
+		size = 0;
+		Arrays.fill(table, EMPTY);
+
+		for (int i = 0; i < old.length; i += 2) {
+			if (old[i] != EMPTY) {
+				put(old[i], old[i + 1]);
+			}
+		}
+	}
+}
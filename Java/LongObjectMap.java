@@ -0,0 +1,172 @@
+package com.edutect.up.api.jackson;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressed hash map from long keys to objects, so entity IDs can be
+ * looked up without boxing them. Values may be null; use
+ * <code>containsKey</code> to tell a null value from a missing key. Kept at
+ * most half full, and removal shifts entries back rather than leaving
+ * tombstones.
+ *
+ * @author Joel
+ */
+public final class LongObjectMap<V> {
+
+	private long[] keys;
+	private Object[] values;
+	private boolean[] used;
+	private int mask;
+	private int size;
+
+	public LongObjectMap() {
+		this(16);
+	}
+
+	public LongObjectMap(int capacity) {
+		int n = Integer.highestOneBit(Math.max(capacity, 4) - 1) << 2;
+		keys = new long[n];
+		values = new Object[n];
+		used = new boolean[n];
+		mask = n - 1;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean containsKey(long key) {
+		return indexOf(key) >= 0;
+	}
+
+	/**
+	 * Gets a key's value.
+	 *
+	 * @return The value, or null if the key is not in the map
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		int i = indexOf(key);
+		return i >= 0 ? (V) values[i] : null;
+	}
+
+	/**
+	 * Sets a key's value, adding the key if it is not in the map.
+	 *
+	 * @return The key's old value, or null if it was not in the map
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		int i = hash(key);
+		while (used[i] && keys[i] != key) {
+			i = (i + 1) & mask;
+		}
+
+		if (!used[i]) {
+			if ((size + 1) * 2 > mask + 1) {
+				grow();
+				return put(key, value);
+			}
+			used[i] = true;
+			keys[i] = key;
+			size++;
+		}
+
+		V old = (V) values[i];
+		values[i] = value;
+		return old;
+	}
+
+	/**
+	 * Removes a key.
+	 *
+	 * @return The key's value, or null if the key was not in the map
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		int i = indexOf(key);
+		if (i < 0) {
+			return null;
+		}
+
+		V value = (V) values[i];
+		size--;
+
+		// Shift back later entries of the same run so lookups never stop early
+		int j = i;
+		while (true) {
+			j = (j + 1) & mask;
+			if (!used[j]) {
+				break;
+			}
+
+			// Move the entry back if its home is not between i and j
+			int home = hash(keys[j]);
+			if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+				keys[i] = keys[j];
+				values[i] = values[j];
+				i = j;
+			}
+		}
+		used[i] = false;
+		values[i] = null;
+
+		return value;
+	}
+
+	/**
+	 * Gets the keys, in no particular order.
+	 */
+	public long[] keys() {
+		long[] result = new long[size];
+		int n = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if (used[i]) {
+				result[n++] = keys[i];
+			}
+		}
+		return result;
+	}
+
+	public void clear() {
+		Arrays.fill(used, false);
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	private int indexOf(long key) {
+		for (int i = hash(key);; i = (i + 1) & mask) {
+			if (!used[i]) {
+				return -1;
+			}
+			if (keys[i] == key) {
+				return i;
+			}
+		}
+	}
+
+	private int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void grow() {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		boolean[] oldUsed = used;
+
+		int n = oldKeys.length * 2;
+		keys = new long[n];
+		values = new Object[n];
+		used = new boolean[n];
+		mask = n - 1;
+		size = 0;
+
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldUsed[i]) {
+				put(oldKeys[i], (V) oldValues[i]);
+			}
+		}
+	}
+}
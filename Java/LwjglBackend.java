@@ -0,0 +1,300 @@
+package engine;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.ARBDrawInstanced;
+import org.lwjgl.opengl.ARBInstancedArrays;
+import org.lwjgl.opengl.ARBShaderObjects;
+import org.lwjgl.opengl.ARBVertexShader;
+import org.lwjgl.opengl.ContextCapabilities;
+import org.lwjgl.opengl.EXTBgra;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL12;
+import org.lwjgl.opengl.GL13;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GLContext;
+
+/**
+ * Renders through LWJGL. Must be used from the thread owning the GL context.
+ * <p>
+ * Instanced draws need ARB_draw_instanced, ARB_instanced_arrays and a
+ * <code>vec3 instanceOffset</code> attribute in the program bound when the
+ * graphic is drawn, added to each vertex's position. The attribute is looked
+ * up once per program. Without them each instance is drawn on its own after
+ * a glTranslatef.
+ *
+ * @author Joel
+ */
+public final class LwjglBackend implements RenderBackend {
+	private final IntBuffer idBuffer = BufferUtils.createIntBuffer(1);
+	private final FloatBuffer matrixBuffer = BufferUtils.createFloatBuffer(16);
+
+	// Whether the driver supports instanced draws
+	private final boolean instancing;
+
+	// Location of each program's instance offset attribute (-1 if it has none)
+	private final IntIntMap instanceAttributes = new IntIntMap();
+
+	// Location in the program bound for the graphic being drawn, or -1 if
+	// instanced draws can't be used for it
+	private int instanceAttribute = -1;
+
+	// Program to put back at endGraphic, or -1 if useProgram wasn't called
+	private int replacedProgram = -1;
+
+	public LwjglBackend() {
+		ContextCapabilities caps = GLContext.getCapabilities();
+		instancing = caps.GL_ARB_draw_instanced && caps.GL_ARB_instanced_arrays;
+	}
+
+	/**
+	 * Whether the graphic being drawn can be drawn instanced.
+	 */
+	public boolean isInstancing() {
+		return instanceAttribute >= 0;
+	}
+
+	@Override
+	public void clear() {
+		GL11.glClear(GL11.GL_COLOR_BUFFER_BIT | GL11.GL_DEPTH_BUFFER_BIT);
+	}
+
+	@Override
+	public int createTexture(int width, int height, boolean alpha, ByteBuffer pixels) {
+		// Create texture
+		idBuffer.clear();
+		GL11.glGenTextures(idBuffer);
+		GL11.glBindTexture(GL11.GL_TEXTURE_2D, idBuffer.get(0));
+
+		// Set texture parameters
+		GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_WRAP_S, GL12.GL_CLAMP_TO_EDGE);
+		GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_WRAP_T, GL12.GL_CLAMP_TO_EDGE);
+		GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_NEAREST);
+		GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_NEAREST);
+
+		texImage(width, height, alpha, pixels);
+
+		return idBuffer.get(0);
+	}
+
+	@Override
+	public void textureData(int texture, int width, int height, boolean alpha, ByteBuffer pixels) {
+		GL11.glBindTexture(GL11.GL_TEXTURE_2D, texture);
+		texImage(width, height, alpha, pixels);
+	}
+
+	private static void texImage(int width, int height, boolean alpha, ByteBuffer pixels) {
+		GL11.glTexImage2D(
+				GL11.GL_TEXTURE_2D,
+				0,
+				//alpha ? EXTBgra.GL_BGRA_EXT : EXTBgra.GL_BGR_EXT,
+				alpha ? GL11.GL_RGBA : GL11.GL_RGB,
+						width,
+						height,
+						0,
+						//alpha ? GL11.GL_RGBA : GL11.GL_RGB,
+						EXTBgra.GL_BGRA_EXT,
+								GL11.GL_UNSIGNED_BYTE,
+								pixels
+		);
+	}
+
+	@Override
+	public int createBuffer() {
+		return GL15.glGenBuffers();
+	}
+
+	@Override
+	public void bufferData(int buffer, ByteBuffer data) {
+		GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, buffer);
+		if (data != null) {
+			GL15.glBufferData(GL15.GL_ARRAY_BUFFER, data, GL15.GL_STATIC_DRAW);
+		} else {
+			GL15.glBufferData(GL15.GL_ARRAY_BUFFER, 0, GL15.GL_STATIC_DRAW);
+		}
+	}
+
+	@Override
+	public void streamData(int buffer, ByteBuffer data) {
+		GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, buffer);
+		GL15.glBufferData(GL15.GL_ARRAY_BUFFER, data, GL15.GL_STREAM_DRAW);
+	}
+
+	@Override
+	public void viewFrom(float[] projection, float[] modelview) {
+		Camera.viewFrom();
+
+		matrixBuffer.clear();
+		GL11.glGetFloat(GL11.GL_PROJECTION_MATRIX, matrixBuffer);
+		matrixBuffer.get(projection);
+
+		matrixBuffer.clear();
+		GL11.glGetFloat(GL11.GL_MODELVIEW_MATRIX, matrixBuffer);
+		matrixBuffer.get(modelview);
+	}
+
+	@Override
+	public void beginDraw() {
+		GL11.glEnableClientState(GL11.GL_VERTEX_ARRAY);
+		GL11.glEnableClientState(GL11.GL_NORMAL_ARRAY);
+		GL11.glEnableClientState(GL11.GL_TEXTURE_COORD_ARRAY);
+		GL13.glClientActiveTexture(GL13.GL_TEXTURE1);
+		GL11.glEnableClientState(GL11.GL_TEXTURE_COORD_ARRAY);
+		GL13.glClientActiveTexture(GL13.GL_TEXTURE0);
+	}
+
+	@Override
+	public void beginGraphic(Graphic g) {
+		g.getFunc().initialize(g);
+
+		// The graphic's function may have bound its own program
+		instanceAttribute = instancing
+				? getInstanceAttribute(ARBShaderObjects.glGetHandleARB(ARBShaderObjects.GL_PROGRAM_OBJECT_ARB))
+				: -1;
+	}
+
+	@Override
+	public void useProgram(int program) {
+		if (replacedProgram < 0) {
+			replacedProgram = ARBShaderObjects.glGetHandleARB(ARBShaderObjects.GL_PROGRAM_OBJECT_ARB);
+		}
+		ARBShaderObjects.glUseProgramObjectARB(program);
+		instanceAttribute = instancing ? getInstanceAttribute(program) : -1;
+	}
+
+	/**
+	 * Gets the location of a program's instance offset attribute, looking it
+	 * up the first time the program is seen.
+	 * @return
+	 * 			The location, or -1 if the program has none (or is 0)
+	 */
+	private int getInstanceAttribute(int program) {
+		if (program == 0) {
+			return -1;
+		}
+
+		int location = instanceAttributes.get(program, -2);
+		if (location == -2) {
+			location = ARBVertexShader.glGetAttribLocationARB(program, "instanceOffset");
+			instanceAttributes.put(program, location);
+		}
+
+		return location;
+	}
+
+	@Override
+	public void drawChunk(int buffer, int vertices) {
+		setPointers(buffer);
+		GL11.glDrawArrays(GL11.GL_QUADS, 0, vertices);
+	}
+
+	@Override
+	public void drawInstances(int buffer, int vertices, int instanceBuffer, FloatBuffer offsets, int first, int count) {
+		setPointers(buffer);
+
+		if (instanceAttribute >= 0) {
+			GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, instanceBuffer);
+			ARBVertexShader.glEnableVertexAttribArrayARB(instanceAttribute);
+			ARBVertexShader.glVertexAttribPointerARB(instanceAttribute, 3, GL11.GL_FLOAT, false,
+					InstanceBatch.BYTES_PER_INSTANCE, (long) first * InstanceBatch.BYTES_PER_INSTANCE);
+			ARBInstancedArrays.glVertexAttribDivisorARB(instanceAttribute, 1);
+
+			ARBDrawInstanced.glDrawArraysInstancedARB(GL11.GL_QUADS, 0, vertices, count);
+
+			ARBInstancedArrays.glVertexAttribDivisorARB(instanceAttribute, 0);
+			ARBVertexShader.glDisableVertexAttribArrayARB(instanceAttribute);
+		} else {
+			// No instancing - move the mesh to each instance in turn
+			for (int i = first; i < first + count; i++) {
+				GL11.glPushMatrix();
+				GL11.glTranslatef(offsets.get(i * 3), offsets.get(i * 3 + 1), offsets.get(i * 3 + 2));
+				GL11.glDrawArrays(GL11.GL_QUADS, 0, vertices);
+				GL11.glPopMatrix();
+			}
+		}
+	}
+
+	/**
+	 * Points the vertex arrays at a buffer in the <code>ChunkMesh</code>
+	 * vertex layout.
+	 */
+	private static void setPointers(int buffer) {
+		GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, buffer);
+		GL11.glVertexPointer(3, GL11.GL_FLOAT, ChunkMesh.BYTES_PER_VERTEX, ChunkMesh.POSITION_OFFSET);
+		GL11.glNormalPointer(GL11.GL_FLOAT, ChunkMesh.BYTES_PER_VERTEX, ChunkMesh.NORMAL_OFFSET);
+		GL11.glTexCoordPointer(2, GL11.GL_FLOAT, ChunkMesh.BYTES_PER_VERTEX, ChunkMesh.UV_OFFSET);
+		GL13.glClientActiveTexture(GL13.GL_TEXTURE1);
+		GL11.glTexCoordPointer(4, GL11.GL_FLOAT, ChunkMesh.BYTES_PER_VERTEX, ChunkMesh.TILE_OFFSET);
+		GL13.glClientActiveTexture(GL13.GL_TEXTURE0);
+	}
+
+	@Override
+	public int createList() {
+		return GL11.glGenLists(1);
+	}
+
+	@Override
+	public void beginList(int list) {
+		GL11.glNewList(list, GL11.GL_COMPILE);
+	}
+
+	@Override
+	public void endList() {
+		GL11.glEndList();
+	}
+
+	@Override
+	public void callList(int list) {
+		GL11.glCallList(list);
+	}
+
+	@Override
+	public void deleteList(int list) {
+		GL11.glDeleteLists(list, 1);
+	}
+
+	@Override
+	public void drawVertices(ByteBuffer vertices, int count) {
+		GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+		beginDraw();
+
+		FloatBuffer floats = vertices.slice().order(ByteOrder.nativeOrder()).asFloatBuffer();
+		floats.position(ChunkMesh.POSITION_OFFSET / 4);
+		GL11.glVertexPointer(3, ChunkMesh.BYTES_PER_VERTEX, floats.slice());
+		floats.position(ChunkMesh.NORMAL_OFFSET / 4);
+		GL11.glNormalPointer(ChunkMesh.BYTES_PER_VERTEX, floats.slice());
+		floats.position(ChunkMesh.UV_OFFSET / 4);
+		GL11.glTexCoordPointer(2, ChunkMesh.BYTES_PER_VERTEX, floats.slice());
+		GL13.glClientActiveTexture(GL13.GL_TEXTURE1);
+		floats.position(ChunkMesh.TILE_OFFSET / 4);
+		GL11.glTexCoordPointer(4, ChunkMesh.BYTES_PER_VERTEX, floats.slice());
+		GL13.glClientActiveTexture(GL13.GL_TEXTURE0);
+
+		GL11.glDrawArrays(GL11.GL_QUADS, 0, count);
+		endDraw();
+	}
+
+	@Override
+	public void endGraphic(Graphic g) {
+		if (replacedProgram >= 0) {
+			ARBShaderObjects.glUseProgramObjectARB(replacedProgram);
+			replacedProgram = -1;
+		}
+		g.getFunc().finalize(g);
+	}
+
+	@Override
+	public void endDraw() {
+		GL13.glClientActiveTexture(GL13.GL_TEXTURE1);
+		GL11.glDisableClientState(GL11.GL_TEXTURE_COORD_ARRAY);
+		GL13.glClientActiveTexture(GL13.GL_TEXTURE0);
+		GL11.glDisableClientState(GL11.GL_TEXTURE_COORD_ARRAY);
+		GL11.glDisableClientState(GL11.GL_NORMAL_ARRAY);
+		GL11.glDisableClientState(GL11.GL_VERTEX_ARRAY);
+		GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+	}
+}
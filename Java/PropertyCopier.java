@@ -0,0 +1,202 @@
+package com.edutect.up.api.jackson;
+
+import java.beans.BeanInfo;
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.WildcardType;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.cirrusaustralia.cub.ejb.UpEntity;
+
+/**
+ * Copies the deserialized properties of one bean onto another of the same
+ * class. Accessors are looked up once and kept as method handles, so copying
+ * an object is a loop over handles with no reflection or name lookups. Only
+ * properties readable and writeable on the class are kept, and
+ * <code>id</code> is never copied. Which properties are lists of
+ * <code>UpEntity</code>s is worked out at the same time.
+ * <p>
+ * The properties copied depend on the deserializer, so copiers are kept by
+ * the deserializer that built them rather than shared by class.
+ *
+ * @author Joel
+ */
+public final class PropertyCopier {
+
+	private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+	private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+	private final Class<?> type;
+	private final String[] names;
+	private final MethodHandle[] getters;
+	private final MethodHandle[] setters;
+	private final boolean[] entityLists;
+
+	private PropertyCopier(Class<?> type, List<String> names,
+			List<MethodHandle> getters, List<MethodHandle> setters,
+			List<Boolean> entityLists) {
+		this.type = type;
+		this.names = names.toArray(new String[names.size()]);
+		this.getters = getters.toArray(new MethodHandle[getters.size()]);
+		this.setters = setters.toArray(new MethodHandle[setters.size()]);
+		this.entityLists = new boolean[entityLists.size()];
+		for (int i = 0; i < this.entityLists.length; i++) {
+			this.entityLists[i] = entityLists.get(i);
+		}
+	}
+
+	/**
+	 * Builds a copier for a class.
+	 *
+	 * @param type
+	 *            Class of the beans to copy
+	 * @param names
+	 *            Names of the properties to copy (those without both a public
+	 *            getter and setter are skipped)
+	 * @throws IllegalAccessException
+	 *             If an accessor can't be reached even with reflection
+	 *             (e.g. it is in a module that isn't open)
+	 */
+	public static PropertyCopier create(Class<?> type, Collection<String> names)
+			throws IntrospectionException, IllegalAccessException {
+		// Find each property's accessors
+		BeanInfo info = Introspector.getBeanInfo(type);
+		Map<String, PropertyDescriptor> descriptors = new HashMap<String, PropertyDescriptor>();
+		for (PropertyDescriptor descriptor : info.getPropertyDescriptors()) {
+			descriptors.put(descriptor.getName(), descriptor);
+		}
+
+		List<String> copied = new ArrayList<String>();
+		List<MethodHandle> getters = new ArrayList<MethodHandle>();
+		List<MethodHandle> setters = new ArrayList<MethodHandle>();
+		List<Boolean> entityLists = new ArrayList<Boolean>();
+
+		for (String name : names) {
+			PropertyDescriptor descriptor = descriptors.get(name);
+			if (descriptor == null || name.equals("id")) {
+				continue;
+			}
+
+			Method read = descriptor.getReadMethod();
+			Method write = descriptor.getWriteMethod();
+			if (read == null || write == null) {
+				continue;
+			}
+
+			copied.add(name);
+			getters.add(unreflect(read).asType(GETTER_TYPE));
+			setters.add(unreflect(write).asType(SETTER_TYPE));
+			entityLists.add(isEntityList(read.getGenericReturnType()));
+		}
+
+		return new PropertyCopier(type, copied, getters, setters, entityLists);
+	}
+
+	/**
+	 * Gets a handle for an accessor. Public accessors declared on a class
+	 * that isn't public (such as a package-private superclass) can't be
+	 * reached through the public lookup, so those are made accessible first.
+	 */
+	private static MethodHandle unreflect(Method method) throws IllegalAccessException {
+		try {
+			return MethodHandles.publicLookup().unreflect(method);
+		} catch (IllegalAccessException e) {
+			try {
+				method.setAccessible(true);
+			} catch (RuntimeException denied) {
+				// Not open to us (a security manager or module says no)
+				throw e;
+			}
+			return MethodHandles.lookup().unreflect(method);
+		}
+	}
+
+	/**
+	 * Whether a property type is a list declared to hold entities.
+	 */
+	private static boolean isEntityList(Type type) {
+		if (!(type instanceof ParameterizedType)) {
+			return false;
+		}
+
+		ParameterizedType list = (ParameterizedType) type;
+		Type element = list.getActualTypeArguments()[0];
+		if (element instanceof WildcardType) {
+			element = ((WildcardType) element).getUpperBounds()[0];
+		}
+		return list.getRawType() instanceof Class
+				&& List.class.isAssignableFrom((Class<?>) list.getRawType())
+				&& element instanceof Class
+				&& UpEntity.class.isAssignableFrom((Class<?>) element);
+	}
+
+	/**
+	 * Gets the class this copier copies.
+	 */
+	public Class<?> getType() {
+		return type;
+	}
+
+	/**
+	 * Gets the number of properties copied.
+	 */
+	public int size() {
+		return getters.length;
+	}
+
+	/**
+	 * Gets the name of a copied property.
+	 */
+	public String getName(int i) {
+		return names[i];
+	}
+
+	/**
+	 * Whether a copied property is a list of entities.
+	 */
+	public boolean isEntityList(int i) {
+		return entityLists[i];
+	}
+
+	/**
+	 * Reads a property from a bean of this copier's class.
+	 */
+	public Object get(Object bean, int i) throws InvocationTargetException {
+		try {
+			return (Object) getters[i].invokeExact(bean);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Error e) {
+			throw e;
+		} catch (Throwable t) {
+			throw new InvocationTargetException(t);
+		}
+	}
+
+	/**
+	 * Writes a property to a bean of this copier's class.
+	 */
+	public void set(Object bean, int i, Object value) throws InvocationTargetException {
+		try {
+			setters[i].invokeExact(bean, value);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Error e) {
+			throw e;
+		} catch (Throwable t) {
+			throw new InvocationTargetException(t);
+		}
+	}
+}
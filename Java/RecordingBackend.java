@@ -0,0 +1,232 @@
+package engine;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Backend that makes no GL calls, only counting what would have been drawn
+ * and uploaded. Used to run <code>GraphicEngine</code> headless, for
+ * benchmarks and on machines without a GPU. Ids are handed out in order
+ * starting from 1, and the camera matrices are whatever was last set.
+ * Copies of uploaded buffer data can be kept, to check what was meshed.
+ *
+ * @author Joel
+ */
+public final class RecordingBackend implements RenderBackend {
+	private int nextId = 1;
+
+	// Matrices returned by viewFrom (identity until set)
+	private final float[] projection = {
+		1, 0, 0, 0,
+		0, 1, 0, 0,
+		0, 0, 1, 0,
+		0, 0, 0, 1 };
+	private final float[] modelview = projection.clone();
+
+	// Counts since the last reset
+	private int frames;
+	private int textures;
+	private long textureBytes;
+	private int bufferUploads;
+	private long bufferBytes;
+	private int graphics;
+	private int drawCalls;
+	private long vertices;
+
+	// Copy of each buffer's data, by buffer (null unless kept)
+	private Map<Integer, ByteBuffer> bufferContents;
+
+	/**
+	 * Sets the matrices viewFrom returns, column-major.
+	 */
+	public void setMatrices(float[] projection, float[] modelview) {
+		System.arraycopy(projection, 0, this.projection, 0, 16);
+		System.arraycopy(modelview, 0, this.modelview, 0, 16);
+	}
+
+	/**
+	 * Sets whether to keep a copy of the data uploaded to each buffer.
+	 */
+	public void setKeepingBuffers(boolean keeping) {
+		bufferContents = keeping ? new HashMap<Integer, ByteBuffer>() : null;
+	}
+
+	/**
+	 * Gets the data last uploaded to each buffer that has any, if kept.
+	 * @return
+	 * 			Read-only copies by buffer, or null if not keeping buffers
+	 */
+	public Map<Integer, ByteBuffer> getBufferContents() {
+		return bufferContents == null ? null : Collections.unmodifiableMap(bufferContents);
+	}
+
+	private void keep(int buffer, ByteBuffer data) {
+		if (bufferContents == null) {
+			return;
+		}
+
+		if (data == null) {
+			bufferContents.remove(buffer);
+		} else {
+			ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+			copy.put(data.duplicate()).flip();
+			bufferContents.put(buffer, copy.asReadOnlyBuffer());
+		}
+	}
+
+	@Override
+	public void clear() {
+		frames++;
+	}
+
+	@Override
+	public int createTexture(int width, int height, boolean alpha, ByteBuffer pixels) {
+		textures++;
+		textureBytes += (long) width * height * 4;
+		return nextId++;
+	}
+
+	@Override
+	public void textureData(int texture, int width, int height, boolean alpha, ByteBuffer pixels) {
+		if (pixels != null) {
+			textures++;
+			textureBytes += (long) width * height * 4;
+		}
+	}
+
+	@Override
+	public int createBuffer() {
+		return nextId++;
+	}
+
+	@Override
+	public void bufferData(int buffer, ByteBuffer data) {
+		if (data != null) {
+			bufferUploads++;
+			bufferBytes += data.remaining();
+		}
+		keep(buffer, data);
+	}
+
+	@Override
+	public void streamData(int buffer, ByteBuffer data) {
+		bufferUploads++;
+		bufferBytes += data.remaining();
+		keep(buffer, data);
+	}
+
+	@Override
+	public void viewFrom(float[] projection, float[] modelview) {
+		System.arraycopy(this.projection, 0, projection, 0, 16);
+		System.arraycopy(this.modelview, 0, modelview, 0, 16);
+	}
+
+	@Override
+	public void beginDraw() {
+	}
+
+	@Override
+	public void beginGraphic(Graphic g) {
+		graphics++;
+	}
+
+	@Override
+	public void useProgram(int program) {
+	}
+
+	@Override
+	public void drawChunk(int buffer, int vertices) {
+		drawCalls++;
+		this.vertices += vertices;
+	}
+
+	@Override
+	public void drawInstances(int buffer, int vertices, int instanceBuffer, FloatBuffer offsets, int first, int count) {
+		drawCalls++;
+		this.vertices += (long) vertices * count;
+	}
+
+	@Override
+	public int createList() {
+		return nextId++;
+	}
+
+	@Override
+	public void beginList(int list) {
+	}
+
+	@Override
+	public void endList() {
+	}
+
+	@Override
+	public void callList(int list) {
+		drawCalls++;
+	}
+
+	@Override
+	public void deleteList(int list) {
+	}
+
+	@Override
+	public void drawVertices(ByteBuffer vertices, int count) {
+		this.vertices += count;
+	}
+
+	@Override
+	public void endGraphic(Graphic g) {
+	}
+
+	@Override
+	public void endDraw() {
+	}
+
+	public int getFrames() {
+		return frames;
+	}
+
+	public int getTextures() {
+		return textures;
+	}
+
+	public long getTextureBytes() {
+		return textureBytes;
+	}
+
+	public int getBufferUploads() {
+		return bufferUploads;
+	}
+
+	public long getBufferBytes() {
+		return bufferBytes;
+	}
+
+	public int getGraphics() {
+		return graphics;
+	}
+
+	public int getDrawCalls() {
+		return drawCalls;
+	}
+
+	public long getVertices() {
+		return vertices;
+	}
+
+	/**
+	 * Zeroes the counts.
+	 */
+	public void reset() {
+		frames = 0;
+		textures = 0;
+		textureBytes = 0;
+		bufferUploads = 0;
+		bufferBytes = 0;
+		graphics = 0;
+		drawCalls = 0;
+		vertices = 0;
+	}
+}
@@ -0,0 +1,140 @@
+package engine;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * The GL calls made by <code>GraphicEngine</code>'s per-frame and loading
+ * paths, so those paths can run without a GL context. LwjglBackend makes
+ * the real calls; RecordingBackend only counts them, for benchmarks and
+ * machines without a GPU. Display setup and shader compilation still talk
+ * to LWJGL directly, since they only run once.
+ *
+ * @author Joel
+ */
+public interface RenderBackend {
+	/**
+	 * Clears the colour and depth buffers.
+	 */
+	public void clear();
+
+	/**
+	 * Creates a texture from flipped BGRA pixels.
+	 * @return
+	 * 			The texture id
+	 */
+	public int createTexture(int width, int height, boolean alpha, ByteBuffer pixels);
+
+	/**
+	 * Replaces a texture's pixels, keeping its id. A 0x0 texture with null
+	 * pixels frees its storage.
+	 */
+	public void textureData(int texture, int width, int height, boolean alpha, ByteBuffer pixels);
+
+	/**
+	 * Creates an empty vertex buffer.
+	 * @return
+	 * 			The buffer id
+	 */
+	public int createBuffer();
+
+	/**
+	 * Replaces a vertex buffer's contents, or frees its storage if data is
+	 * null.
+	 */
+	public void bufferData(int buffer, ByteBuffer data);
+
+	/**
+	 * Replaces a buffer's contents with data that changes often, such as
+	 * instance offsets.
+	 */
+	public void streamData(int buffer, ByteBuffer data);
+
+	/**
+	 * Applies the camera and reads back the projection and modelview
+	 * matrices, column-major.
+	 */
+	public void viewFrom(float[] projection, float[] modelview);
+
+	/**
+	 * Enables the vertex arrays used by drawChunk.
+	 */
+	public void beginDraw();
+
+	/**
+	 * Sets up the state for drawing a graphic (its function's initialize).
+	 */
+	public void beginGraphic(Graphic g);
+
+	/**
+	 * Draws the graphic begun with a program other than the one its function
+	 * bound, until endGraphic puts the function's program back.
+	 */
+	public void useProgram(int program);
+
+	/**
+	 * Draws a chunk's vertex buffer as quads in the <code>ChunkMesh</code>
+	 * vertex layout.
+	 */
+	public void drawChunk(int buffer, int vertices);
+
+	/**
+	 * Draws a range of instances of one mesh, each moved by its offset.
+	 * Uses an instanced draw where the driver and shader support it, and
+	 * otherwise draws the mesh once per instance.
+	 * @param
+	 * 			buffer			Vertex buffer of the mesh
+	 * 			vertices		Vertices in the mesh
+	 * 			instanceBuffer	Buffer of instance offsets, three floats each
+	 * 			offsets			The same offsets, for drawing without instancing
+	 * 			first			First instance to draw
+	 * 			count			Number of instances to draw
+	 */
+	public void drawInstances(int buffer, int vertices, int instanceBuffer, FloatBuffer offsets, int first, int count);
+
+	/**
+	 * Creates an empty display list, for graphics whose entities make GL
+	 * calls of their own while drawing.
+	 * @return
+	 * 			The list id
+	 */
+	public int createList();
+
+	/**
+	 * Starts compiling a display list, replacing its contents. GL calls made
+	 * until endList are recorded rather than executed.
+	 */
+	public void beginList(int list);
+
+	/**
+	 * Finishes compiling the display list started by beginList.
+	 */
+	public void endList();
+
+	/**
+	 * Draws a display list.
+	 */
+	public void callList(int list);
+
+	/**
+	 * Deletes a display list.
+	 */
+	public void deleteList(int list);
+
+	/**
+	 * Draws vertices in the <code>ChunkMesh</code> layout straight from
+	 * memory, as quads. Used while compiling display lists, which copy the
+	 * vertices in.
+	 */
+	public void drawVertices(ByteBuffer vertices, int count);
+
+	/**
+	 * Restores the state changed by beginGraphic (its function's finalize).
+	 */
+	public void endGraphic(Graphic g);
+
+	/**
+	 * Disables the vertex arrays enabled by beginDraw.
+	 */
+	public void endDraw();
+}
@@ -0,0 +1,368 @@
+package engine;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Per-frame timings and counters for <code>GraphicEngine.render()</code>.
+ * The render thread times each phase with System.nanoTime() and bumps
+ * counters as it goes; at the end of a frame everything is copied into a
+ * ring buffer holding the last N frames. Readers on other threads (JMX, a
+ * CSV dump) copy frames out without locking, and skip any frame that was
+ * overwritten while they were reading it.
+ * <p>
+ * Recording a frame allocates nothing, so this can stay on in production.
+ *
+ * @author Joel
+ */
+public final class RenderStats implements RenderStatsMBean {
+	// Phases of a frame, in the order render() runs them
+	public static final int PHASE_TEXTURES = 0;
+	public static final int PHASE_INDEX = 1;
+	public static final int PHASE_REBUILD = 2;
+	public static final int PHASE_UPLOAD = 3;
+	public static final int PHASE_CAMERA = 4;
+	public static final int PHASE_DRAW = 5;
+	public static final int PHASES = 6;
+
+	private static final String[] PHASE_NAMES = {
+		"textures", "index", "rebuild", "upload", "camera", "draw" };
+
+	// Counters
+	public static final int COUNT_ENTITIES = 0;
+	public static final int COUNT_CHUNKS_REBUILT = 1;
+	public static final int COUNT_CHUNKS_UPLOADED = 2;
+	public static final int COUNT_DRAW_CALLS = 3;
+	public static final int COUNT_VERTICES = 4;
+	public static final int COUNT_TEXTURE_UPLOADS = 5;
+	public static final int COUNT_RESIDENCY_MISSES = 6;
+	public static final int COUNT_EVICTIONS = 7;
+	public static final int COUNTERS = 8;
+
+	private static final String[] COUNTER_NAMES = {
+		"entities", "chunksRebuilt", "chunksUploaded", "drawCalls", "vertices", "textureUploads",
+		"residencyMisses", "evictions" };
+
+	// Frame record: frame number, wall clock time, total nanos, phases, counters
+	private static final int FIELD_FRAME = 0;
+	private static final int FIELD_TIME = 1;
+	private static final int FIELD_TOTAL = 2;
+	private static final int FIELD_PHASES = 3;
+	private static final int FIELD_COUNTERS = FIELD_PHASES + PHASES;
+	private static final int FIELDS = FIELD_COUNTERS + COUNTERS;
+
+	private final int capacity;
+
+	// Ring buffer of frame records, and the frame number each slot holds
+	// (-1 while it is being written)
+	private final long[] frames;
+	private final AtomicLongArray stamps;
+
+	// Number of frames recorded
+	private volatile long frameCount;
+
+	private volatile boolean enabled = true;
+
+	// Directory CSV dumps are written to (null if dumping is off)
+	private volatile File dumpDirectory;
+
+	// Frame being recorded (render thread only)
+	private final long[] current = new long[FIELDS];
+	private long frameStart;
+	private long phaseStart;
+
+	/**
+	 * @param
+	 * 			capacity	Number of frames to keep
+	 */
+	public RenderStats(int capacity) {
+		this.capacity = capacity;
+		this.frames = new long[capacity * FIELDS];
+		this.stamps = new AtomicLongArray(capacity);
+
+		for (int i = 0; i < capacity; i++) {
+			stamps.set(i, -1);
+		}
+	}
+
+	/**
+	 * Registers the stats with the platform MBean server, replacing any
+	 * already registered under the same name.
+	 * @param
+	 * 			name		Object name, e.g. "engine:type=RenderStats"
+	 */
+	public void register(String name) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(name);
+
+			if (server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+			server.registerMBean(this, objectName);
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Sets the directory dumpCsv writes to. Deliberately not on the MBean, so
+	 * JMX clients can only write inside a directory chosen here.
+	 * @param
+	 * 			directory	Directory for dumps, or null to refuse all dumps
+	 */
+	public void setDumpDirectory(File directory) {
+		dumpDirectory = directory;
+	}
+
+	public File getDumpDirectory() {
+		return dumpDirectory;
+	}
+
+	/**
+	 * Starts timing a frame. Counts made since the last frame ended belong
+	 * to this frame.
+	 */
+	public void beginFrame() {
+		if (!enabled) {
+			return;
+		}
+
+		frameStart = System.nanoTime();
+		phaseStart = frameStart;
+	}
+
+	/**
+	 * Ends a phase, adding the time since the last phase (or the start of
+	 * the frame) to it.
+	 */
+	public void endPhase(int phase) {
+		if (!enabled) {
+			return;
+		}
+
+		long now = System.nanoTime();
+		current[FIELD_PHASES + phase] += now - phaseStart;
+		phaseStart = now;
+	}
+
+	/**
+	 * Adds to a counter for the current frame.
+	 */
+	public void count(int counter, int n) {
+		current[FIELD_COUNTERS + counter] += n;
+	}
+
+	/**
+	 * Ends the frame and copies it into the ring buffer.
+	 */
+	public void endFrame() {
+		if (!enabled) {
+			Arrays.fill(current, 0);
+			return;
+		}
+
+		long frame = frameCount;
+		int slot = (int) (frame % capacity);
+
+		current[FIELD_FRAME] = frame;
+		current[FIELD_TIME] = System.currentTimeMillis();
+		current[FIELD_TOTAL] = System.nanoTime() - frameStart;
+
+		stamps.set(slot, -1);
+		System.arraycopy(current, 0, frames, slot * FIELDS, FIELDS);
+		stamps.set(slot, frame);
+		frameCount = frame + 1;
+
+		Arrays.fill(current, 0);
+	}
+
+	/**
+	 * Copies the frames still in the ring buffer, oldest first, skipping any
+	 * being overwritten.
+	 * @return
+	 * 			Frame records of FIELDS longs each
+	 */
+	private long[][] copyFrames() {
+		long end = frameCount;
+		long start = Math.max(0, end - capacity);
+		long[][] copy = new long[(int) (end - start)][];
+		int n = 0;
+
+		for (long frame = start; frame < end; frame++) {
+			int slot = (int) (frame % capacity);
+			long[] record = new long[FIELDS];
+
+			if (stamps.get(slot) != frame) {
+				continue;
+			}
+			System.arraycopy(frames, slot * FIELDS, record, 0, FIELDS);
+			if (stamps.get(slot) != frame) {
+				continue;
+			}
+
+			copy[n++] = record;
+		}
+
+		return Arrays.copyOf(copy, n);
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	@Override
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	@Override
+	public long getFrameCount() {
+		return frameCount;
+	}
+
+	@Override
+	public int getCapacity() {
+		return capacity;
+	}
+
+	@Override
+	public double getLastFrameMillis() {
+		long[][] records = copyFrames();
+		return records.length == 0 ? 0 : records[records.length - 1][FIELD_TOTAL] / 1e6;
+	}
+
+	@Override
+	public double getAverageFrameMillis() {
+		return average(copyFrames(), FIELD_TOTAL) / 1e6;
+	}
+
+	@Override
+	public double getMaxFrameMillis() {
+		long max = 0;
+		for (long[] record : copyFrames()) {
+			max = Math.max(max, record[FIELD_TOTAL]);
+		}
+		return max / 1e6;
+	}
+
+	@Override
+	public String[] getPhaseNames() {
+		return PHASE_NAMES.clone();
+	}
+
+	@Override
+	public double[] getAveragePhaseMillis() {
+		long[][] records = copyFrames();
+		double[] averages = new double[PHASES];
+		for (int i = 0; i < PHASES; i++) {
+			averages[i] = average(records, FIELD_PHASES + i) / 1e6;
+		}
+		return averages;
+	}
+
+	@Override
+	public String[] getCounterNames() {
+		return COUNTER_NAMES.clone();
+	}
+
+	@Override
+	public double[] getAverageCounts() {
+		long[][] records = copyFrames();
+		double[] averages = new double[COUNTERS];
+		for (int i = 0; i < COUNTERS; i++) {
+			averages[i] = average(records, FIELD_COUNTERS + i);
+		}
+		return averages;
+	}
+
+	private static double average(long[][] records, int field) {
+		if (records.length == 0) {
+			return 0;
+		}
+
+		long sum = 0;
+		for (long[] record : records) {
+			sum += record[field];
+		}
+		return (double) sum / records.length;
+	}
+
+	@Override
+	public void dumpCsv(String filename) throws IOException {
+		File directory = dumpDirectory;
+		if (directory == null) {
+			throw new IOException("No dump directory set");
+		}
+
+		// Resolve ".." and links before checking where the file ends up
+		directory.mkdirs();
+		File root = directory.getCanonicalFile();
+		File file = new File(root, filename).getCanonicalFile();
+		if (!root.equals(file.getParentFile())) {
+			throw new IOException("Not in the dump directory: " + filename);
+		}
+
+		Writer out = new FileWriter(file);
+		try {
+			writeCsv(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes the frames in the ring buffer as CSV, one row per frame, with
+	 * times in nanoseconds.
+	 */
+	public void writeCsv(Writer writer) {
+		PrintWriter out = new PrintWriter(writer);
+
+		out.print("frame,time,total");
+		for (String name : PHASE_NAMES) {
+			out.print(',');
+			out.print(name);
+		}
+		for (String name : COUNTER_NAMES) {
+			out.print(',');
+			out.print(name);
+		}
+		out.println();
+
+		for (long[] record : copyFrames()) {
+			for (int i = 0; i < FIELDS; i++) {
+				if (i > 0) {
+					out.print(',');
+				}
+				out.print(record[i]);
+			}
+			out.println();
+		}
+
+		out.flush();
+	}
+
+	@Override
+	public void reset() {
+		for (int i = 0; i < capacity; i++) {
+			stamps.set(i, -1);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("RenderStats: %d frames, avg %.2fms, max %.2fms",
+				frameCount, getAverageFrameMillis(), getMaxFrameMillis());
+	}
+}
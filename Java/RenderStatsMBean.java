@@ -0,0 +1,44 @@
+package engine;
+
+import java.io.IOException;
+
+/**
+ * JMX view of <code>RenderStats</code>. Times are in milliseconds, averaged
+ * over the frames still held in the ring buffer.
+ *
+ * @author Joel
+ */
+public interface RenderStatsMBean {
+	public boolean isEnabled();
+
+	public void setEnabled(boolean enabled);
+
+	public long getFrameCount();
+
+	public int getCapacity();
+
+	public double getLastFrameMillis();
+
+	public double getAverageFrameMillis();
+
+	public double getMaxFrameMillis();
+
+	public String[] getPhaseNames();
+
+	public double[] getAveragePhaseMillis();
+
+	public String[] getCounterNames();
+
+	public double[] getAverageCounts();
+
+	/**
+	 * Writes the frames in the ring buffer to a CSV file in the dump
+	 * directory. Names with a path are rejected.
+	 */
+	public void dumpCsv(String filename) throws IOException;
+
+	/**
+	 * Forgets every recorded frame.
+	 */
+	public void reset();
+}
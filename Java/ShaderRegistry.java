@@ -0,0 +1,323 @@
+package engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.ARBFragmentShader;
+import org.lwjgl.opengl.ARBGetProgramBinary;
+import org.lwjgl.opengl.ARBShaderObjects;
+import org.lwjgl.opengl.ARBVertexShader;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GLContext;
+
+/**
+ * Named shader programs, each linked from a vertex and fragment shader.
+ * Where the driver supports ARB_get_program_binary, linked programs are
+ * saved to disk and loaded straight from the binary on later launches,
+ * keyed by a hash of both sources and the GL vendor, renderer and version,
+ * so a driver update or source change falls back to compiling from source.
+ * Must be used from the render thread.
+ *
+ * @author Joel
+ */
+public final class ShaderRegistry {
+	private static final int MAGIC = 0x50524f47; // "PROG"
+	private static final int VERSION = 1;
+
+	// magic, version, binary format, length
+	private static final int HEADER_SIZE = 16;
+
+	private final File shaderDir;
+	private final File cacheDir;
+
+	// Programs by name
+	private final HashMap<String, Integer> programs = new HashMap<String, Integer>();
+
+	// Whether program binaries can be used, and the driver they are for
+	private final boolean binaries;
+	private String driver;
+
+	private int cacheHits;
+	private int cacheMisses;
+
+	/**
+	 * @param
+	 * 			shaderDir	Directory shader sources are read from
+	 * 			cacheDir	Directory to keep program binaries in
+	 */
+	public ShaderRegistry(File shaderDir, File cacheDir) {
+		this.shaderDir = shaderDir;
+		this.cacheDir = cacheDir;
+		this.binaries = GLContext.getCapabilities().GL_ARB_get_program_binary;
+	}
+
+	/**
+	 * Gets a program, linking it from its sources (or the cache) the first
+	 * time it is asked for.
+	 * @param
+	 * 			name			Name to register the program under
+	 * 			vertexFile		Vertex shader filename, in the shader directory
+	 * 			fragmentFile	Fragment shader filename, in the shader directory
+	 * @return
+	 * 			The program object
+	 */
+	public int load(String name, String vertexFile, String fragmentFile) throws IOException {
+		Integer program = programs.get(name);
+
+		if (program == null) {
+			String vertexSource = read(vertexFile);
+			String fragmentSource = read(fragmentFile);
+
+			program = loadBinary(vertexSource, fragmentSource);
+			if (program == 0) {
+				program = link(vertexSource, fragmentSource);
+			}
+
+			programs.put(name, program);
+		}
+
+		return program;
+	}
+
+	/**
+	 * Gets a program that has already been loaded.
+	 * @return
+	 * 			The program object, or 0 if there is none by that name
+	 */
+	public int get(String name) {
+		Integer program = programs.get(name);
+		return program == null ? 0 : program;
+	}
+
+	/**
+	 * Gets the number of programs loaded from a saved binary.
+	 */
+	public int getCacheHits() {
+		return cacheHits;
+	}
+
+	/**
+	 * Gets the number of programs compiled from source.
+	 */
+	public int getCacheMisses() {
+		return cacheMisses;
+	}
+
+	/**
+	 * Reads a shader source file in one go.
+	 */
+	private String read(String filename) throws IOException {
+		return new String(Files.readAllBytes(new File(shaderDir, filename).toPath()), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Compiles and links a program from source, and saves its binary.
+	 */
+	private int link(String vertexSource, String fragmentSource) {
+		cacheMisses++;
+
+		int program = ARBShaderObjects.glCreateProgramObjectARB();
+		int vertShader = compile(ARBVertexShader.GL_VERTEX_SHADER_ARB, vertexSource);
+		int fragShader = compile(ARBFragmentShader.GL_FRAGMENT_SHADER_ARB, fragmentSource);
+
+		if (binaries) {
+			ARBGetProgramBinary.glProgramParameteri(program,
+					ARBGetProgramBinary.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL11.GL_TRUE);
+		}
+
+		ARBShaderObjects.glAttachObjectARB(program, vertShader);
+		ARBShaderObjects.glAttachObjectARB(program, fragShader);
+		ARBShaderObjects.glLinkProgramARB(program);
+		ARBShaderObjects.glValidateProgramARB(program);
+		printLog(program);
+
+		// The program keeps the compiled code, so the shaders can go
+		ARBShaderObjects.glDetachObjectARB(program, vertShader);
+		ARBShaderObjects.glDetachObjectARB(program, fragShader);
+		ARBShaderObjects.glDeleteObjectARB(vertShader);
+		ARBShaderObjects.glDeleteObjectARB(fragShader);
+
+		if (binaries && ARBShaderObjects.glGetObjectParameteriARB(program,
+				ARBShaderObjects.GL_OBJECT_LINK_STATUS_ARB) == GL11.GL_TRUE) {
+			saveBinary(program, vertexSource, fragmentSource);
+		}
+
+		return program;
+	}
+
+	private int compile(int type, String source) {
+		int shader = ARBShaderObjects.glCreateShaderObjectARB(type);
+		ARBShaderObjects.glShaderSourceARB(shader, source);
+		ARBShaderObjects.glCompileShaderARB(shader);
+		printLog(shader);
+		return shader;
+	}
+
+	/**
+	 * Prints an object's info log, if it has one.
+	 */
+	private static void printLog(int object) {
+		int length = ARBShaderObjects.glGetObjectParameteriARB(object, ARBShaderObjects.GL_OBJECT_INFO_LOG_LENGTH_ARB);
+		if (length > 1) {
+			System.out.println("Info log:\n" + ARBShaderObjects.glGetInfoLogARB(object, length));
+		}
+	}
+
+	/**
+	 * Creates a program from a saved binary.
+	 * @return
+	 * 			The program, or 0 if there is no usable binary
+	 */
+	private int loadBinary(String vertexSource, String fragmentSource) {
+		if (!binaries) {
+			return 0;
+		}
+
+		File entry = getEntry(vertexSource, fragmentSource);
+		if (!entry.isFile()) {
+			return 0;
+		}
+
+		try {
+			RandomAccessFile file = new RandomAccessFile(entry, "r");
+			int format;
+			ByteBuffer binary;
+
+			try {
+				FileChannel channel = file.getChannel();
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				while (header.hasRemaining() && channel.read(header) >= 0) {
+				}
+				header.flip();
+
+				if (header.remaining() < HEADER_SIZE
+						|| header.getInt() != MAGIC
+						|| header.getInt() != VERSION) {
+					return 0;
+				}
+
+				format = header.getInt();
+				int length = header.getInt();
+				if (channel.size() < HEADER_SIZE + length) {
+					return 0;
+				}
+
+				binary = BufferUtils.createByteBuffer(length);
+				while (binary.hasRemaining() && channel.read(binary) >= 0) {
+				}
+				binary.flip();
+			} finally {
+				file.close();
+			}
+
+			int program = ARBShaderObjects.glCreateProgramObjectARB();
+			ARBGetProgramBinary.glProgramBinary(program, format, binary);
+
+			// Drivers may reject a binary even when the key matches
+			if (ARBShaderObjects.glGetObjectParameteriARB(program,
+					ARBShaderObjects.GL_OBJECT_LINK_STATUS_ARB) != GL11.GL_TRUE) {
+				ARBShaderObjects.glDeleteObjectARB(program);
+				entry.delete();
+				return 0;
+			}
+
+			cacheHits++;
+			return program;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return 0;
+		}
+	}
+
+	/**
+	 * Saves a linked program's binary, replacing any existing entry.
+	 */
+	private void saveBinary(int program, String vertexSource, String fragmentSource) {
+		int length = ARBShaderObjects.glGetObjectParameteriARB(program, ARBGetProgramBinary.GL_PROGRAM_BINARY_LENGTH);
+		if (length <= 0) {
+			return;
+		}
+
+		IntBuffer lengthBuffer = BufferUtils.createIntBuffer(1);
+		IntBuffer formatBuffer = BufferUtils.createIntBuffer(1);
+		ByteBuffer binary = BufferUtils.createByteBuffer(length);
+		ARBGetProgramBinary.glGetProgramBinary(program, lengthBuffer, formatBuffer, binary);
+		binary.limit(lengthBuffer.get(0));
+
+		File entry = getEntry(vertexSource, fragmentSource);
+
+		try {
+			cacheDir.mkdirs();
+
+			// Write to a temporary file so readers never see a partial entry
+			File temp = File.createTempFile("prog", ".tmp", cacheDir);
+			RandomAccessFile file = new RandomAccessFile(temp, "rw");
+			try {
+				FileChannel channel = file.getChannel();
+
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				header.putInt(MAGIC);
+				header.putInt(VERSION);
+				header.putInt(formatBuffer.get(0));
+				header.putInt(binary.remaining());
+				header.flip();
+
+				while (header.hasRemaining()) {
+					channel.write(header);
+				}
+				while (binary.hasRemaining()) {
+					channel.write(binary);
+				}
+			} finally {
+				file.close();
+			}
+
+			if (!temp.renameTo(entry)) {
+				entry.delete();
+				if (!temp.renameTo(entry)) {
+					temp.delete();
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Gets the cache entry for a pair of sources on this driver.
+	 */
+	private File getEntry(String vertexSource, String fragmentSource) {
+		if (driver == null) {
+			driver = GL11.glGetString(GL11.GL_VENDOR) + "\n"
+					+ GL11.glGetString(GL11.GL_RENDERER) + "\n"
+					+ GL11.glGetString(GL11.GL_VERSION);
+		}
+
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update(driver.getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+			digest.update(vertexSource.getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+			digest.update(fragmentSource.getBytes(StandardCharsets.UTF_8));
+
+			StringBuilder name = new StringBuilder();
+			for (byte b : digest.digest()) {
+				name.append(String.format("%02x", b));
+			}
+			return new File(cacheDir, name + ".bin");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package engine;
+
+import java.util.Arrays;
+
+/**
+ * Set of entity slots backed by a bitset for membership and a list of the
+ * slots added, so it can be iterated and cleared in time proportional to its
+ * size rather than to the number of slots. Never allocates once grown.
+ *
+ * @author Joel
+ */
+public final class SlotSet {
+	private long[] words = new long[16];
+	private int[] slots = new int[64];
+	private int size;
+
+	/**
+	 * Adds a slot.
+	 * @return
+	 * 			Whether the slot was not already in the set
+	 */
+	public boolean add(int slot) {
+		int word = slot >>> 6;
+		if (word >= words.length) {
+			words = Arrays.copyOf(words, Math.max(words.length * 2, word + 1));
+		}
+
+		long bit = 1L << slot;
+		if ((words[word] & bit) != 0) {
+			return false;
+		}
+		words[word] |= bit;
+
+		if (size == slots.length) {
+			slots = Arrays.copyOf(slots, size * 2);
+		}
+		slots[size++] = slot;
+		return true;
+	}
+
+	public boolean contains(int slot) {
+		int word = slot >>> 6;
+		return word < words.length && (words[word] & (1L << slot)) != 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Gets the i'th slot added.
+	 */
+	public int get(int i) {
+		return slots[i];
+	}
+
+	public void clear() {
+		for (int i = 0; i < size; i++) {
+			words[slots[i] >>> 6] = 0;
+		}
+		size = 0;
+	}
+}
@@ -0,0 +1,71 @@
+package engine;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Triple buffer of <code>EntitySnapshot</code>s, passing the simulation's
+ * latest tick to the renderer without locks. The simulation fills the back
+ * snapshot and publishes it; the renderer takes the newest published one at
+ * the start of each frame. Each side always owns one snapshot and the third
+ * is swapped between them with a single atomic exchange, so neither side
+ * waits and a snapshot is never written while it is being read. Ticks
+ * published faster than frames are drawn are skipped.
+ * <p>
+ * One thread may write and one may read.
+ *
+ * @author Joel
+ */
+public final class SnapshotExchange {
+	// Set on the middle index when it holds a snapshot the reader hasn't taken
+	private static final int FRESH = 4;
+	private static final int INDEX = 3;
+
+	private final EntitySnapshot[] snapshots = new EntitySnapshot[3];
+
+	// Snapshot in the middle, between writer and reader
+	private final AtomicInteger middle = new AtomicInteger(0);
+
+	// Owned by the writer and the reader
+	private int back = 1;
+	private int front = 2;
+
+	public SnapshotExchange(int capacity) {
+		for (int i = 0; i < 3; i++) {
+			snapshots[i] = new EntitySnapshot(capacity);
+		}
+	}
+
+	/**
+	 * Gets the snapshot for the writer to fill. Writer only.
+	 */
+	public EntitySnapshot getBack() {
+		return snapshots[back];
+	}
+
+	/**
+	 * Publishes the back snapshot as the newest, and takes another to fill.
+	 * Writer only.
+	 */
+	public void publish() {
+		back = middle.getAndSet(back | FRESH) & INDEX;
+	}
+
+	/**
+	 * Gets the newest published snapshot, or the one taken last time if
+	 * nothing has been published since. It stays valid until the next call.
+	 * Reader only.
+	 */
+	public EntitySnapshot acquire() {
+		if ((middle.get() & FRESH) != 0) {
+			front = middle.getAndSet(front) & INDEX;
+		}
+		return snapshots[front];
+	}
+
+	/**
+	 * Whether a snapshot has been published since the last acquire.
+	 */
+	public boolean hasFresh() {
+		return (middle.get() & FRESH) != 0;
+	}
+}
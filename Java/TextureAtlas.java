@@ -0,0 +1,209 @@
+package engine;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.lwjgl.BufferUtils;
+
+/**
+ * Packs several textures into shared square pages, so graphics drawn with the
+ * same function can share a texture binding. Textures are placed on shelves,
+ * tallest first, and copied into each page's pixel buffer. Pixels are in the
+ * flipped BGRA layout produced by <code>GraphicEngine.decodeTexture</code>.
+ * Makes no GL calls.
+ *
+ * @author Joel
+ */
+public final class TextureAtlas {
+	private final int pageSize;
+
+	// Textures to pack, and where they ended up
+	private final LinkedHashMap<String, TextureData> textures = new LinkedHashMap<String, TextureData>();
+	private final LinkedHashMap<String, Region> regions = new LinkedHashMap<String, Region>();
+
+	// Pages
+	private final List<ByteBuffer> pages = new ArrayList<ByteBuffer>();
+	private final List<Long> usedPixels = new ArrayList<Long>();
+
+	public TextureAtlas(int pageSize) {
+		this.pageSize = pageSize;
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * Adds a texture to be packed.
+	 * @return
+	 * 			Whether the texture fits on a page
+	 */
+	public boolean add(String name, TextureData data) {
+		if (data.getWidth() > pageSize || data.getHeight() > pageSize) {
+			return false;
+		}
+
+		textures.put(name, data);
+		return true;
+	}
+
+	/**
+	 * Packs every added texture into pages.
+	 */
+	public void pack() {
+		List<String> names = new ArrayList<String>(textures.keySet());
+		Collections.sort(names, new Comparator<String>() {
+			public int compare(String a, String b) {
+				return textures.get(b).getHeight() - textures.get(a).getHeight();
+			}
+		});
+
+		int page = -1, x = 0, y = 0, shelfHeight = 0;
+
+		for (String name : names) {
+			TextureData data = textures.get(name);
+			int w = data.getWidth(), h = data.getHeight();
+
+			// Start a new shelf, then a new page, when we run out of room
+			if (page >= 0 && x + w > pageSize) {
+				x = 0;
+				y += shelfHeight;
+				shelfHeight = 0;
+			}
+			if (page < 0 || y + h > pageSize) {
+				page = pages.size();
+				pages.add(BufferUtils.createByteBuffer(pageSize * pageSize * 4));
+				usedPixels.add(0L);
+				x = 0;
+				y = 0;
+				shelfHeight = 0;
+			}
+
+			copy(data, pages.get(page), x, y);
+			regions.put(name, new Region(page, x, y, w, h, pageSize));
+			usedPixels.set(page, usedPixels.get(page) + (long) w * h);
+
+			x += w;
+			shelfHeight = Math.max(shelfHeight, h);
+		}
+	}
+
+	/**
+	 * Copies a texture's rows into a page at (x, y), measured from the bottom.
+	 */
+	private void copy(TextureData data, ByteBuffer page, int x, int y) {
+		ByteBuffer src = data.getPixels().duplicate();
+		ByteBuffer dst = page.duplicate();
+		int rowBytes = data.getWidth() * 4;
+
+		for (int row = 0; row < data.getHeight(); row++) {
+			src.limit((row + 1) * rowBytes);
+			src.position(row * rowBytes);
+			dst.position(((y + row) * pageSize + x) * 4);
+			dst.put(src);
+		}
+	}
+
+	public int getPageCount() {
+		return pages.size();
+	}
+
+	/**
+	 * Gets a page's pixels as a direct buffer positioned at 0.
+	 */
+	public ByteBuffer getPagePixels(int page) {
+		return pages.get(page);
+	}
+
+	/**
+	 * Gets where a texture was packed, or null if it was not.
+	 */
+	public Region getRegion(String name) {
+		return regions.get(name);
+	}
+
+	public List<String> getNames() {
+		return new ArrayList<String>(regions.keySet());
+	}
+
+	/**
+	 * Gets the fraction of a page's pixels that are used.
+	 */
+	public float getOccupancy(int page) {
+		return usedPixels.get(page) / ((float) pageSize * pageSize);
+	}
+
+	/**
+	 * Gets the fraction of all pages' pixels that are used.
+	 */
+	public float getOccupancy() {
+		long used = 0;
+		for (long pixels : usedPixels) {
+			used += pixels;
+		}
+		return pages.isEmpty() ? 0f : used / ((float) pageSize * pageSize * pages.size());
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("TextureAtlas: ");
+		sb.append(regions.size()).append(" textures in ").append(pages.size()).append(" pages");
+		for (int i = 0; i < pages.size(); i++) {
+			sb.append(String.format(", page %d %.1f%%", i, getOccupancy(i) * 100f));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Where a texture was packed, in pixels and as a UV transform.
+	 */
+	public static final class Region {
+		private final int page;
+		private final int x, y, width, height;
+		private final float[] uvTransform;
+
+		Region(int page, int x, int y, int width, int height, int pageSize) {
+			this.page = page;
+			this.x = x;
+			this.y = y;
+			this.width = width;
+			this.height = height;
+			this.uvTransform = new float[] {
+					(float) x / pageSize, (float) y / pageSize,
+					(float) width / pageSize, (float) height / pageSize };
+		}
+
+		public int getPage() {
+			return page;
+		}
+
+		public int getX() {
+			return x;
+		}
+
+		public int getY() {
+			return y;
+		}
+
+		public int getWidth() {
+			return width;
+		}
+
+		public int getHeight() {
+			return height;
+		}
+
+		/**
+		 * Gets the offset and scale (u0, v0, uScale, vScale) that map the
+		 * texture's own UVs into the page. The array is shared, so must not
+		 * be modified.
+		 */
+		public float[] getUVTransform() {
+			return uvTransform;
+		}
+	}
+}
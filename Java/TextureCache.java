@@ -0,0 +1,223 @@
+package engine;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * On-disk cache of decoded textures, so startup does not have to decode every
+ * image again. Each entry holds GL-ready BGRA pixels behind a small header,
+ * and is memory-mapped when loaded so the pixels go to glTexImage2D without
+ * being copied.
+ * <p>
+ * Entries are keyed by source path. An entry is used when the source's length
+ * and modified time still match, or failing that when a CRC32 of the source's
+ * contents still matches, so it is rebuilt automatically once the source
+ * changes. An entry found by its CRC gets the source's new length and
+ * modified time written back, so the next load doesn't hash it again.
+ * Safe to use from several threads as long as they load different files.
+ *
+ * @author Joel
+ */
+public final class TextureCache {
+	private static final int MAGIC = 0x54455843; // "TEXC"
+	private static final int VERSION = 1;
+
+	// magic, version, source length, modified and hash, width, height, flags, padding
+	private static final int HEADER_SIZE = 48;
+
+	// Position of the source length, followed by its modified time
+	private static final int LENGTH_OFFSET = 8;
+
+	private static final int FLAG_ALPHA = 1;
+
+	private final File sourceDir;
+	private final File cacheDir;
+
+	/**
+	 * @param
+	 * 			sourceDir	Directory source images are read from
+	 * 			cacheDir	Directory to keep cache entries in
+	 */
+	public TextureCache(File sourceDir, File cacheDir) {
+		this.sourceDir = sourceDir;
+		this.cacheDir = cacheDir;
+	}
+
+	/**
+	 * Loads a texture from the cache.
+	 * @return
+	 * 			The texture with its pixels mapped from the cache, or null if
+	 * 			there is no valid entry
+	 */
+	public TextureData load(String filename) {
+		File source = new File(sourceDir, filename);
+		File entry = getEntry(filename);
+
+		if (!entry.isFile() || !source.isFile()) {
+			return null;
+		}
+
+		try {
+			RandomAccessFile file = new RandomAccessFile(entry, "r");
+			try {
+				FileChannel channel = file.getChannel();
+
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				while (header.hasRemaining() && channel.read(header) >= 0) {
+				}
+				header.flip();
+
+				if (header.remaining() < HEADER_SIZE
+						|| header.getInt() != MAGIC
+						|| header.getInt() != VERSION) {
+					return null;
+				}
+
+				long length = header.getLong();
+				long modified = header.getLong();
+				long hash = header.getLong();
+				int width = header.getInt();
+				int height = header.getInt();
+				int flags = header.getInt();
+
+				// Fall back to the content hash if the file looks different
+				boolean stale = length != source.length() || modified != source.lastModified();
+				if (stale && hash != hash(source)) {
+					return null;
+				}
+
+				long size = (long) width * height * 4;
+				if (channel.size() < HEADER_SIZE + size) {
+					return null;
+				}
+
+				if (stale) {
+					// Same contents (e.g. touched or checked out again)
+					refresh(entry, source);
+				}
+
+				MappedByteBuffer pixels = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, size);
+				return new TextureData(width, height, (flags & FLAG_ALPHA) != 0, pixels);
+			} finally {
+				file.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Writes a decoded texture to the cache, replacing any existing entry.
+	 */
+	public void store(String filename, TextureData data) {
+		File source = new File(sourceDir, filename);
+		File entry = getEntry(filename);
+
+		try {
+			cacheDir.mkdirs();
+
+			// Write to a temporary file so readers never see a partial entry
+			File temp = File.createTempFile("tex", ".tmp", cacheDir);
+			RandomAccessFile file = new RandomAccessFile(temp, "rw");
+			try {
+				FileChannel channel = file.getChannel();
+
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+				header.putInt(MAGIC);
+				header.putInt(VERSION);
+				header.putLong(source.length());
+				header.putLong(source.lastModified());
+				header.putLong(hash(source));
+				header.putInt(data.getWidth());
+				header.putInt(data.getHeight());
+				header.putInt(data.hasAlpha() ? FLAG_ALPHA : 0);
+				header.position(HEADER_SIZE);
+				header.flip();
+
+				ByteBuffer pixels = data.getPixels().duplicate();
+				pixels.position(0);
+
+				while (header.hasRemaining()) {
+					channel.write(header);
+				}
+				while (pixels.hasRemaining()) {
+					channel.write(pixels);
+				}
+			} finally {
+				file.close();
+			}
+
+			if (!temp.renameTo(entry)) {
+				entry.delete();
+				if (!temp.renameTo(entry)) {
+					temp.delete();
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Writes a source's current length and modified time into its entry's
+	 * header. Failing to is not fatal, as the entry is still valid by CRC.
+	 */
+	private static void refresh(File entry, File source) {
+		try {
+			RandomAccessFile file = new RandomAccessFile(entry, "rw");
+			try {
+				ByteBuffer fields = ByteBuffer.allocate(16).order(ByteOrder.BIG_ENDIAN);
+				fields.putLong(source.length());
+				fields.putLong(source.lastModified());
+				fields.flip();
+
+				FileChannel channel = file.getChannel();
+				long position = LENGTH_OFFSET;
+				while (fields.hasRemaining()) {
+					position += channel.write(fields, position);
+				}
+			} finally {
+				file.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Gets the cache entry for a source path.
+	 */
+	private File getEntry(String filename) {
+		String name = filename.replaceAll("[^A-Za-z0-9.-]", "_");
+		return new File(cacheDir, name + "." + Integer.toHexString(filename.hashCode()) + ".tex");
+	}
+
+	/**
+	 * Gets a CRC32 of a file's contents.
+	 */
+	private static long hash(File source) throws IOException {
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[64 * 1024];
+
+		InputStream in = new FileInputStream(source);
+		try {
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				crc.update(buffer, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+
+		return crc.getValue();
+	}
+}
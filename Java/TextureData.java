@@ -0,0 +1,42 @@
+package engine;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decoded texture pixels, flipped and swizzled ready for glTexImage2D.
+ * Holds no GL resources, so it can be produced on any thread.
+ *
+ * @author Joel
+ */
+public final class TextureData {
+	private final int width;
+	private final int height;
+	private final boolean alpha;
+	private final ByteBuffer pixels;
+
+	public TextureData(int width, int height, boolean alpha, ByteBuffer pixels) {
+		this.width = width;
+		this.height = height;
+		this.alpha = alpha;
+		this.pixels = pixels;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public boolean hasAlpha() {
+		return alpha;
+	}
+
+	/**
+	 * Gets the pixels as a direct buffer positioned at the first pixel.
+	 */
+	public ByteBuffer getPixels() {
+		return pixels;
+	}
+}
@@ -0,0 +1,161 @@
+package engine;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.lwjgl.Sys;
+
+/**
+ * Loads textures in the background. Images are decoded on a pool of worker
+ * threads, and the GL upload is left for the render thread, which calls
+ * uploadDecoded once per frame. All methods other than the workers' own must
+ * be called from the render thread.
+ *
+ * @author Joel
+ */
+final class TextureLoader {
+	private final ExecutorService executor;
+
+	// Loads that have been started but not yet uploaded
+	private final HashMap<String, Load> pending = new HashMap<String, Load>();
+
+	// Loads whose images have been decoded
+	private final ConcurrentLinkedQueue<Load> decoded = new ConcurrentLinkedQueue<Load>();
+
+	TextureLoader() {
+		this(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+	}
+
+	TextureLoader(int threads) {
+		executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "TextureLoader-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Starts loading a texture, or gets the load already in progress.
+	 * @return
+	 * 			Future completed on the render thread once the texture is uploaded
+	 */
+	Future<Graphic> load(String filename, GraphicFunction func) {
+		Load load = pending.get(filename);
+
+		if (load == null) {
+			load = new Load(filename, func);
+			load.decoding = executor.submit(load.decoder);
+			pending.put(filename, load);
+		}
+
+		return load.future;
+	}
+
+	/**
+	 * Uploads every texture decoded since the last call.
+	 */
+	void uploadDecoded() {
+		Load load;
+		while ((load = decoded.poll()) != null) {
+			upload(load);
+		}
+	}
+
+	/**
+	 * Finishes a pending load immediately, waiting for it to decode if needed.
+	 * @return
+	 * 			The uploaded graphic, or null if the texture was not pending or
+	 * 			failed to load
+	 */
+	Graphic finish(String filename) {
+		Load load = pending.get(filename);
+
+		if (load == null) {
+			return null;
+		}
+
+		try {
+			load.decoding.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			// Decoder stores its own errors
+		}
+
+		upload(load);
+
+		try {
+			return load.future.get();
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	boolean isPending(String filename) {
+		return pending.containsKey(filename);
+	}
+
+	private void upload(Load load) {
+		if (pending.remove(load.filename) != null) {
+			load.future.run();
+		}
+	}
+
+	/**
+	 * A texture being loaded. The decoder runs on a worker and the future's
+	 * upload runs on the render thread.
+	 */
+	private final class Load implements Callable<Graphic> {
+		final String filename;
+		final GraphicFunction func;
+		final FutureTask<Graphic> future = new FutureTask<Graphic>(this);
+		Future<?> decoding;
+
+		volatile TextureData data;
+		volatile IOException error;
+
+		final Runnable decoder = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					data = GraphicEngine.decodeTexture(filename);
+				} catch (IOException e) {
+					error = e;
+				} catch (RuntimeException e) {
+					error = new IOException(e);
+				}
+				decoded.add(Load.this);
+			}
+		};
+
+		Load(String filename, GraphicFunction func) {
+			this.filename = filename;
+			this.func = func;
+		}
+
+		@Override
+		public Graphic call() throws IOException {
+			if (error != null) {
+				error.printStackTrace();
+				Sys.alert("Error", "Error loading texture: " + filename);
+				throw error;
+			}
+			return GraphicEngine.uploadTexture(filename, data, func);
+		}
+	}
+}
@@ -1,17 +1,21 @@
 package com.edutect.up.api.jackson;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.commons.beanutils.PropertyUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.cirrusaustralia.cub.ejb.UpEntity;
-import com.cirrusaustralia.cub.ejb.enums.DETAIL;
 import com.cirrusaustralia.up.ejb.sessions.ApiSessionRemote;
 import com.edutect.up.api.ProxyEJB;
 import com.fasterxml.jackson.core.JsonParser;
@@ -35,8 +39,14 @@ public class UpJsonDeserializer extends BeanDeserializer {
 
 	private UpObjectMapper mapper;
 	protected ApiSessionRemote apiSession = ProxyEJB.getInstance().getApiEJB();
+	protected EntityCache entityCache = EntityCache.getInstance();
 
 	private static final Logger log = LoggerFactory.getLogger(UpJsonDeserializer.class);
+
+	// Copiers for this deserializer's properties by class, and classes that
+	// can't have one (copied reflectively instead)
+	private final ConcurrentMap<Class<?>, PropertyCopier> copiers = new ConcurrentHashMap<Class<?>, PropertyCopier>();
+	private final Set<Class<?>> uncopiable = Collections.newSetFromMap(new ConcurrentHashMap<Class<?>, Boolean>());
 	
 	protected UpJsonDeserializer(BeanDeserializerBase src, UpObjectMapper mapper) {
 		super(src);
@@ -54,80 +64,285 @@ public class UpJsonDeserializer extends BeanDeserializer {
 			JsonProcessingException {
 		// Deserialize object and try to find its new/old obj in our maps
 		UpEntity obj = (UpEntity) super.deserializeWithObjectId(jp, ctxt);
-		UpEntity oldObj = (UpEntity) mapper.oldObjectMap.get(obj.getJsonId());
-		UpEntity newObj = (UpEntity) mapper.newObjectMap.get(obj.getJsonId());
+
+		// Use the read's own maps if it has them, else the mapper's
+		UpReadState state = UpReadState.get(ctxt);
+		Map<Object, ? super UpEntity> oldObjectMap = mapper.oldObjectMap;
+		Map<Object, ? super UpEntity> newObjectMap = mapper.newObjectMap;
+		if (state != null) {
+			oldObjectMap = state.oldObjectMap;
+			newObjectMap = state.newObjectMap;
+		}
+
+		// On a prefetch's collecting pass only record what to look up
+		EntityPrefetch prefetch = state != null ? state.getPrefetch() : mapper.getPrefetch();
+		if (prefetch != null && prefetch.isCollecting()) {
+			prefetch.add(obj.getClass(), obj.getId());
+			return obj;
+		}
+
+		UpEntity oldObj = (UpEntity) oldObjectMap.get(obj.getJsonId());
+		UpEntity newObj = (UpEntity) newObjectMap.get(obj.getJsonId());
 
 		// If we have no new/old obj yet, try to find our old obj with our ID
 		if (newObj == null && oldObj == null && obj.getId() != 0) {
-			oldObj = apiSession.find(obj.getClass(), obj.getId(), DETAIL.NONE);
+			if (prefetch != null && prefetch.isFetched(obj.getClass(), obj.getId())) {
+				oldObj = prefetch.get(obj.getClass(), obj.getId());
+			} else {
+				ApiSessionRemote session = state != null && state.getSession() != null
+						? state.getSession() : apiSession;
+				oldObj = entityCache.find(session, obj.getClass(), obj.getId());
+			}
 
 			if (oldObj == null) {
 				// Nothing matches this ID - get rid of it
 				obj.setId(0);
 			} else {
 				// Found old object - add to our map
-				mapper.oldObjectMap.put(obj.getJsonId(), oldObj);
+				oldObjectMap.put(obj.getJsonId(), oldObj);
 			}
 		}
 
 		// If we have an old obj confirm we are allowed to update it
-		if (mapper.getDelegate() != null) {
-			if (oldObj != null
-					&& !mapper.getDelegate().shouldUpdate(oldObj,
-							jp.getParsingContext().getEntryCount() > 0)) {
-				// Not allowed to update this old obj - just return it instead
-				return oldObj;
-			}
+		if (mapper.getDelegate() != null && oldObj != null
+				&& !shouldUpdate(state, oldObj, jp.getParsingContext().getEntryCount() > 0)) {
+			// Not allowed to update this old obj - just return it instead
+			return oldObj;
 		}
 
 		// Check if we have a new obj to update using our deserialized obj
 		if (newObj == null) {
 			// No new obj found - use our deserialized object as our new obj
-			mapper.newObjectMap.put(obj.getJsonId(), obj);
+			newObjectMap.put(obj.getJsonId(), obj);
 			newObj = obj;
 		}
 
+		// Track changes against our old obj if the read wants them. New objs
+		// are saved whole, so only updates need their properties recorded
+		ChangeTracker changes = state != null ? state.getChanges() : mapper.getChanges();
+		ChangeSet changeSet = null;
+		if (changes != null) {
+			changeSet = changes.track(newObj, oldObj == null);
+			if (changeSet.isNew()) {
+				changeSet = null;
+			}
+		}
+
+		// An old obj of another class can't be compared with, so every
+		// property copied is recorded as changed
+		Object compareWith = oldObj != null
+				&& obj.getClass().isInstance(oldObj)
+				&& newObj.getClass() == obj.getClass() ? oldObj : null;
+
 		// Update our deserialized object
 		try {
-			// Copy properties from deserialized object to new obj
-			Iterator<SettableBeanProperty> it = properties();
-			while (it.hasNext()) {
-				SettableBeanProperty prop = it.next();
-				String name = prop.getName();
-
-				// Only copy props we can write (and ignore the ID)
-				if (PropertyUtils.isWriteable(newObj, name)
-						&& PropertyUtils.isReadable(obj, name)
-						&& !name.equals("id")) {
-					Object value = PropertyUtils.getProperty(obj, name);
-
-					// Sort lists of entities to move new objs to the end
-					if (value instanceof List) {
-						List<?> list = (List<?>) value;
-						if (list.size() > 1) {
-							Collections.sort(list, new Comparator<Object>() {
-								public int compare(Object e1, Object e2) {
-									if (e1 instanceof UpEntity) {
-										return ((UpEntity) e1).getId() > 0 ? -1
-												: 1;
-									}
-									return 0;
-								}
-							});
-						}
+			PropertyCopier copier = newObj.getClass() == obj.getClass()
+					? getCopier(obj.getClass()) : null;
+			if (copier != null) {
+				copyProperties(copier, obj, newObj, compareWith, changeSet);
+			} else {
+				copyPropertiesReflectively(obj, newObj, compareWith, changeSet);
+			}
+		} catch (Exception e) {
+			log.error("Error deserializing", e);
+		}
+
+		return newObj;
+	}
+
+	/**
+	 * Asks the mapper's delegate whether an old obj may be updated. Reads
+	 * with their own state may run on several threads at once (see
+	 * UpJsonParallel), and the delegate isn't required to be thread-safe, so
+	 * their calls are made one at a time.
+	 */
+	private boolean shouldUpdate(UpReadState state, UpEntity oldObj,
+			boolean hasEntries) {
+		if (state == null) {
+			return mapper.getDelegate().shouldUpdate(oldObj, hasEntries);
+		}
+
+		synchronized (mapper.getDelegate()) {
+			return mapper.getDelegate().shouldUpdate(oldObj, hasEntries);
+		}
+	}
+
+	/**
+	 * Gets the cached copier for a class, building it from this
+	 * deserializer's properties the first time.
+	 * 
+	 * @return The copier, or null if the class's accessors can't be reached
+	 */
+	private PropertyCopier getCopier(Class<?> type) throws Exception {
+		PropertyCopier copier = copiers.get(type);
+		if (copier != null || uncopiable.contains(type)) {
+			return copier;
+		}
+
+		List<String> names = new ArrayList<String>();
+		Iterator<SettableBeanProperty> it = properties();
+		while (it.hasNext()) {
+			names.add(it.next().getName());
+		}
+
+		try {
+			copier = PropertyCopier.create(type, names);
+		} catch (IllegalAccessException e) {
+			log.warn("Copying " + type.getName() + " reflectively: " + e.getMessage());
+			uncopiable.add(type);
+			return null;
+		}
+
+		PropertyCopier existing = copiers.putIfAbsent(type, copier);
+		return existing != null ? existing : copier;
+	}
+
+	/**
+	 * Copies non-null properties from our deserialized object to our new obj,
+	 * skipping those it already has, and records those that differ from our
+	 * old obj. Properties our old obj can't read (not loaded with the detail
+	 * it was found with) are recorded as changed.
+	 * 
+	 * @param oldObj
+	 *            Managed entity to compare with, or null to record every
+	 *            property copied as changed
+	 * @param changeSet
+	 *            Change set to record differences in, or null to not record
+	 *            them
+	 */
+	private static void copyProperties(PropertyCopier copier, Object obj,
+			Object newObj, Object oldObj, ChangeSet changeSet)
+			throws Exception {
+		for (int i = 0; i < copier.size(); i++) {
+			Object value = copier.get(obj, i);
+
+			// Don't copy null values
+			if (value == null) {
+				continue;
+			}
+			if (copier.isEntityList(i)) {
+				moveNewLast((List<?>) value);
+			}
+
+			if (changeSet != null && oldObj == null) {
+				changeSet.add(copier.getName(i), null, value);
+			} else if (changeSet != null) {
+				try {
+					Object oldValue = copier.get(oldObj, i);
+					if (!ChangeTracker.same(oldValue, value)) {
+						changeSet.add(copier.getName(i), oldValue, value);
 					}
+				} catch (Exception e) {
+					// Can't compare - save it to be safe
+					unreadable(changeSet, copier.getName(i), value, e);
+				}
+			}
+
+			// Don't write what our new obj already has
+			if (newObj != obj && copier.get(newObj, i) != value) {
+				copier.set(newObj, i, value);
+			}
+		}
+	}
+
+	/**
+	 * Copies properties by name, for a new obj of a different class to our
+	 * deserialized object (or a class without a copier), recording those
+	 * that differ from our old obj like copyProperties.
+	 */
+	private void copyPropertiesReflectively(Object obj, Object newObj,
+			Object oldObj, ChangeSet changeSet) throws Exception {
+		Iterator<SettableBeanProperty> it = properties();
+		while (it.hasNext()) {
+			String name = it.next().getName();
+
+			// Only copy props we can write (and ignore the ID)
+			if (PropertyUtils.isWriteable(newObj, name)
+					&& PropertyUtils.isReadable(obj, name)
+					&& !name.equals("id")) {
+				Object value = PropertyUtils.getProperty(obj, name);
 
-					// Don't copy null values
-					if (value != null) {
-						PropertyUtils.setProperty(newObj, name, value);
+				// Don't copy null values
+				if (value != null) {
+					if (value instanceof List) {
+						moveNewLast((List<?>) value);
+					}
+					if (changeSet != null && oldObj == null) {
+						changeSet.add(name, null, value);
+					} else if (changeSet != null) {
+						try {
+							Object oldValue = PropertyUtils.getProperty(oldObj, name);
+							if (!ChangeTracker.same(oldValue, value)) {
+								changeSet.add(name, oldValue, value);
+							}
+						} catch (Exception e) {
+							unreadable(changeSet, name, value, e);
+						}
 					}
+					PropertyUtils.setProperty(newObj, name, value);
 				}
 			}
-		} catch (Exception e) {
-			log.error("Error deserializing", e);
 		}
+	}
 
-		return newObj;
+	/**
+	 * Records a property our old obj couldn't read (e.g. a lazy property it
+	 * was found without) as changed, with no old value.
+	 */
+	private static void unreadable(ChangeSet changeSet, String name,
+			Object value, Exception e) {
+		log.debug("Can't read old " + name + ", saving it: " + e);
+		changeSet.add(name, null, value);
+	}
+
+	/**
+	 * Moves the new objs (entities with no ID yet) in a list to the end,
+	 * keeping everything else in order. Lists already in that order are left
+	 * untouched.
+	 */
+	@SuppressWarnings("unchecked")
+	private static void moveNewLast(List<?> list) {
+		// Find the first existing element after a new obj
+		int first = -1;
+		int index = 0;
+		boolean seenNew = false;
+		for (Object e : list) {
+			if (isNew(e)) {
+				seenNew = true;
+			} else if (seenNew) {
+				first = index;
+				break;
+			}
+			index++;
+		}
+		if (first < 0) {
+			return;
+		}
+
+		// Partition into a copy, then write it back in one pass
+		Object[] elements = list.toArray();
+		Object[] partitioned = new Object[elements.length];
+		int kept = 0;
+		for (Object e : elements) {
+			if (!isNew(e)) {
+				partitioned[kept++] = e;
+			}
+		}
+		for (Object e : elements) {
+			if (isNew(e)) {
+				partitioned[kept++] = e;
+			}
+		}
+
+		ListIterator<Object> it = ((List<Object>) list).listIterator();
+		for (Object e : partitioned) {
+			it.next();
+			it.set(e);
+		}
+	}
+
+	private static boolean isNew(Object e) {
+		return e instanceof UpEntity && ((UpEntity) e).getId() <= 0;
 	}
 
 	@Override
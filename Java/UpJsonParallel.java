@@ -0,0 +1,293 @@
+package com.edutect.up.api.jackson;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.edutect.up.api.ProxyEJB;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonMappingException;
+
+/**
+ * Deserializes the elements of a JSON array of <code>UpEntity</code>s in
+ * parallel, so the remote finds for one element overlap with those of the
+ * others. The array is split into a buffer per element, and each element is
+ * deserialized by the main mapper on an executor, with its own old/new object
+ * maps and change tracker (an <code>UpReadState</code>). The maps and change
+ * sets are then merged into the main mapper's in element order. A resolved
+ * prefetch is shared by every element, as it is only read from.
+ * <p>
+ * Elements must be independent. Before anything is deserialized, the split
+ * elements are scanned for a JSON ID defined in more than one element (or
+ * already in the main mapper's maps) and for values matching a JSON ID
+ * defined in another element. If any are found the whole array is
+ * deserialized by the main mapper in one go, so nothing is deserialized
+ * twice. The scan can't tell a reference from a string that happens to
+ * match a JSON ID, so such a string only costs the parallelism. Errors
+ * (including references to JSON IDs defined nowhere) are thrown as they
+ * would be by a sequential read. A prefetch's collecting pass is always
+ * read in one go.
+ * <p>
+ * Each element finds its old objs through a session of its own from
+ * <code>ProxyEJB</code>. The mapper's delegate is shared, and its calls
+ * are made one at a time, but it must not depend on being called from the
+ * thread that started the read.
+ *
+ * @author Joel
+ */
+public class UpJsonParallel {
+
+	private static final Logger log = LoggerFactory.getLogger(UpJsonParallel.class);
+
+	// Property holding an entity's object ID
+	private static final String JSON_ID = "jsonId";
+
+	private UpJsonParallel() {
+	}
+
+	/**
+	 * Creates an executor for deserializing. Elements spend most of their
+	 * time waiting on remote finds, so it has several threads per core.
+	 */
+	public static ExecutorService createExecutor() {
+		int threads = Runtime.getRuntime().availableProcessors() * 4;
+
+		return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "UpJsonParallel-"
+						+ count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Reads each element of an array in parallel.
+	 *
+	 * @param mapper
+	 *            Mapper to deserialize with, which the results are merged
+	 *            into
+	 * @param executor
+	 *            Executor to deserialize on
+	 * @param jp
+	 *            Parser positioned before or at the start of the array
+	 * @param type
+	 *            Class of the elements
+	 * @return The elements, in order
+	 */
+	public static <T> List<T> read(final UpObjectMapper mapper,
+			ExecutorService executor, JsonParser jp, Class<T> type)
+			throws IOException {
+		List<byte[]> elements = split(mapper, jp);
+
+		// Collecting adds to the prefetch, which isn't safe to share
+		EntityPrefetch prefetch = mapper.getPrefetch();
+		if (prefetch != null && prefetch.isCollecting()) {
+			return readSequentially(mapper, elements, type);
+		}
+
+		// Decide before deserializing anything, so nothing is done twice
+		if (!isIndependent(mapper, elements)) {
+			return readSequentially(mapper, elements, type);
+		}
+
+		// Deserialize each element with its own maps
+		final JavaType elementType = mapper.constructType(type);
+		boolean tracking = mapper.getChanges() != null;
+		List<Future<T>> futures = new ArrayList<Future<T>>(elements.size());
+		List<UpReadState> states = new ArrayList<UpReadState>(elements.size());
+		for (final byte[] element : elements) {
+			// A session of its own, as session proxies needn't be thread-safe
+			final UpReadState state = new UpReadState(prefetch,
+					tracking ? new ChangeTracker() : null,
+					ProxyEJB.getInstance().getApiEJB());
+
+			states.add(state);
+			futures.add(executor.submit(new Callable<T>() {
+				@Override
+				public T call() throws IOException {
+					return state.read(mapper, element, elementType);
+				}
+			}));
+		}
+
+		// Collect results in order
+		List<T> values = new ArrayList<T>(futures.size());
+		try {
+			for (Future<T> future : futures) {
+				values.add(future.get());
+			}
+		} catch (InterruptedException e) {
+			cancel(futures);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted deserializing");
+		} catch (ExecutionException e) {
+			cancel(futures);
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Error deserializing", e.getCause());
+		}
+
+		merge(mapper, states);
+		return values;
+	}
+
+	/**
+	 * Splits an array into the JSON of each element.
+	 */
+	private static List<byte[]> split(UpObjectMapper mapper, JsonParser jp)
+			throws IOException {
+		JsonToken token = jp.getCurrentToken();
+		if (token == null) {
+			token = jp.nextToken();
+		}
+		if (token != JsonToken.START_ARRAY) {
+			throw new JsonMappingException("Expected an array of entities",
+					jp.getCurrentLocation());
+		}
+
+		List<byte[]> elements = new ArrayList<byte[]>();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		while ((token = jp.nextToken()) != JsonToken.END_ARRAY) {
+			if (token == null) {
+				throw new JsonMappingException("Unexpected end of entities",
+						jp.getCurrentLocation());
+			}
+
+			out.reset();
+			JsonGenerator generator = mapper.getFactory().createGenerator(out);
+			generator.copyCurrentStructure(jp);
+			generator.close();
+			elements.add(out.toByteArray());
+		}
+
+		return elements;
+	}
+
+	/**
+	 * Scans the split elements for entities they share: a JSON ID defined in
+	 * more than one element or already in the main mapper's maps, or a value
+	 * in one element matching a JSON ID defined in another.
+	 *
+	 * @return Whether the elements can be deserialized separately
+	 */
+	private static boolean isIndependent(UpObjectMapper mapper,
+			List<byte[]> elements) throws IOException {
+		Set<String> existing = new HashSet<String>();
+		for (Object jsonId : mapper.oldObjectMap.keySet()) {
+			existing.add(String.valueOf(jsonId));
+		}
+		for (Object jsonId : mapper.newObjectMap.keySet()) {
+			existing.add(String.valueOf(jsonId));
+		}
+
+		// Element each JSON ID is defined in, and the values of each element
+		Map<String, Integer> defined = new HashMap<String, Integer>();
+		List<Set<String>> values = new ArrayList<Set<String>>(elements.size());
+
+		for (int i = 0; i < elements.size(); i++) {
+			Set<String> elementValues = new HashSet<String>();
+			values.add(elementValues);
+
+			JsonParser jp = mapper.getFactory().createParser(elements.get(i));
+			try {
+				JsonToken token;
+				while ((token = jp.nextToken()) != null) {
+					if (token == JsonToken.FIELD_NAME
+							&& JSON_ID.equals(jp.getCurrentName())) {
+						jp.nextToken();
+						String jsonId = jp.getText();
+						Integer other = defined.put(jsonId, i);
+						if ((other != null && other != i) || existing.contains(jsonId)) {
+							log.debug("Entity " + jsonId + " shared between elements");
+							return false;
+						}
+					} else if (token.isScalarValue()) {
+						elementValues.add(jp.getText());
+					}
+				}
+			} finally {
+				jp.close();
+			}
+		}
+
+		for (int i = 0; i < values.size(); i++) {
+			for (String value : values.get(i)) {
+				Integer owner = defined.get(value);
+				if ((owner != null && owner != i) || existing.contains(value)) {
+					log.debug("Element " + i + " may refer to " + value
+							+ " from another element");
+					return false;
+				}
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Merges each element's object maps and change sets into the main
+	 * mapper's.
+	 */
+	private static void merge(UpObjectMapper mapper, List<UpReadState> states) {
+		for (UpReadState state : states) {
+			mapper.oldObjectMap.putAll(state.oldObjectMap);
+			mapper.newObjectMap.putAll(state.newObjectMap);
+			if (state.getChanges() != null) {
+				mapper.getChanges().addAll(state.getChanges());
+			}
+		}
+	}
+
+	/**
+	 * Deserializes the buffered elements as a single array with the main
+	 * mapper.
+	 */
+	private static <T> List<T> readSequentially(UpObjectMapper mapper,
+			List<byte[]> elements, Class<T> type) throws IOException {
+		ByteArrayOutputStream array = new ByteArrayOutputStream();
+		array.write('[');
+		for (int i = 0; i < elements.size(); i++) {
+			if (i > 0) {
+				array.write(',');
+			}
+			array.write(elements.get(i));
+		}
+		array.write(']');
+
+		JavaType listType = mapper.getTypeFactory().constructCollectionType(
+				List.class, type);
+
+		return mapper.readValue(array.toByteArray(), listType);
+	}
+
+	private static void cancel(List<? extends Future<?>> futures) {
+		for (Future<?> future : futures) {
+			future.cancel(true);
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package com.edutect.up.api.jackson;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonMappingException;
+
+/**
+ * Reads a JSON array of <code>UpEntity</code>s one element at a time, handing
+ * each finished entity graph to a <code>Handler</code> and then forgetting
+ * it. The mapper's old/new object maps and change tracker only ever hold one
+ * element's entities, so memory stays flat however long the array is.
+ * <p>
+ * Each element is deserialized on its own, so object ID references must not
+ * cross elements. Streaming reads the parser once and can't be combined
+ * with an <code>EntityPrefetch</code>; the shared <code>EntityCache</code>
+ * still saves refetching entities common to many elements.
+ *
+ * @author Joel
+ */
+public class UpJsonStream {
+
+	/**
+	 * Receives each entity as it is deserialized.
+	 */
+	public interface Handler<T> {
+		/**
+		 * Handles an entity. Called before the mapper forgets the entity's
+		 * graph and its change sets, so it should be saved (or copied) here.
+		 */
+		void handle(T entity) throws IOException;
+	}
+
+	private UpJsonStream() {
+	}
+
+	/**
+	 * Reads each element of an array.
+	 *
+	 * @param mapper
+	 *            Mapper to deserialize with
+	 * @param jp
+	 *            Parser positioned before or at the start of the array
+	 * @param type
+	 *            Class of the elements
+	 * @param handler
+	 *            Handler to receive each element
+	 * @return The number of elements read
+	 */
+	public static <T> int read(UpObjectMapper mapper, JsonParser jp,
+			Class<T> type, Handler<? super T> handler) throws IOException {
+		JsonToken token = jp.getCurrentToken();
+		if (token == null) {
+			token = jp.nextToken();
+		}
+		if (token != JsonToken.START_ARRAY) {
+			throw new JsonMappingException("Expected an array of entities",
+					jp.getCurrentLocation());
+		}
+
+		int count = 0;
+		while ((token = jp.nextToken()) != JsonToken.END_ARRAY) {
+			if (token == null) {
+				throw new JsonMappingException("Unexpected end of entities",
+						jp.getCurrentLocation());
+			}
+
+			T entity = mapper.readValue(jp, type);
+			try {
+				handler.handle(entity);
+			} finally {
+				// Nothing later can refer back to this element's entities
+				if (mapper.getChanges() != null) {
+					mapper.getChanges().removeAll(mapper.newObjectMap.values());
+				}
+				mapper.oldObjectMap.clear();
+				mapper.newObjectMap.clear();
+			}
+			count++;
+		}
+
+		return count;
+	}
+}
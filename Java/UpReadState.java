@@ -0,0 +1,107 @@
+package com.edutect.up.api.jackson;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.cirrusaustralia.cub.ejb.UpEntity;
+import com.cirrusaustralia.up.ejb.sessions.ApiSessionRemote;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.DeserializationConfig;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.deser.DefaultDeserializationContext;
+
+/**
+ * The object maps, prefetch and change tracker for one read, for reads that
+ * share a mapper but must not share its maps (see <code>UpJsonParallel</code>).
+ * Passed to the read as a context attribute (<code>ATTRIBUTE</code>), so
+ * every read still uses the mapper's deserializers. Reads without one use the
+ * mapper's own maps.
+ *
+ * @author Joel
+ */
+public class UpReadState {
+
+	public static final String ATTRIBUTE = UpReadState.class.getName();
+
+	// By JSON object ID, as on UpObjectMapper
+	public final Map<Object, UpEntity> oldObjectMap = new HashMap<Object, UpEntity>();
+	public final Map<Object, UpEntity> newObjectMap = new HashMap<Object, UpEntity>();
+
+	private final EntityPrefetch prefetch;
+	private final ChangeTracker changes;
+	private final ApiSessionRemote session;
+
+	/**
+	 * @param prefetch
+	 *            Prefetch to take old objs from, or null. Only read from, so
+	 *            it may be shared between reads once resolved.
+	 * @param changes
+	 *            Tracker for this read's changes, or null to not track them
+	 */
+	public UpReadState(EntityPrefetch prefetch, ChangeTracker changes) {
+		this(prefetch, changes, null);
+	}
+
+	/**
+	 * @param session
+	 *            Session to find old objs through, or null to use the
+	 *            deserializer's. Reads on different threads should each have
+	 *            their own, as session proxies aren't required to be
+	 *            thread-safe.
+	 */
+	public UpReadState(EntityPrefetch prefetch, ChangeTracker changes,
+			ApiSessionRemote session) {
+		this.prefetch = prefetch;
+		this.changes = changes;
+		this.session = session;
+	}
+
+	/**
+	 * Gets the state of the read a context belongs to.
+	 *
+	 * @return The state, or null if the read uses the mapper's own
+	 */
+	public static UpReadState get(DeserializationContext ctxt) {
+		return (UpReadState) ctxt.getAttribute(ATTRIBUTE);
+	}
+
+	/**
+	 * Deserializes a document with the mapper's deserializers and this
+	 * state. Reads through an <code>ObjectReader</code> don't fail on
+	 * unresolved object IDs, so the context is made here and checked once
+	 * the document is read, as <code>ObjectMapper.readValue</code> does.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T read(UpObjectMapper mapper, byte[] json, JavaType type)
+			throws IOException {
+		DeserializationConfig config = mapper.getDeserializationConfig()
+				.withAttribute(ATTRIBUTE, this);
+		JsonParser jp = mapper.getFactory().createParser(json);
+		try {
+			DefaultDeserializationContext ctxt = ((DefaultDeserializationContext) mapper
+					.getDeserializationContext()).createInstance(config, jp,
+					mapper.getInjectableValues());
+
+			jp.nextToken();
+			T value = (T) ctxt.readValue(jp, type);
+			ctxt.checkUnresolvedObjectId();
+			return value;
+		} finally {
+			jp.close();
+		}
+	}
+
+	public EntityPrefetch getPrefetch() {
+		return prefetch;
+	}
+
+	public ChangeTracker getChanges() {
+		return changes;
+	}
+
+	public ApiSessionRemote getSession() {
+		return session;
+	}
+}
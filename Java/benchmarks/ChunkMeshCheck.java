@@ -0,0 +1,135 @@
+package engine;
+
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Checks <code>ChunkMesh</code> packing and growth headless, with no test
+ * framework. A grid of boxes is added to a mesh that starts with room for a
+ * single face, so its buffer grows several times, and to one that never has
+ * to grow. The packed vertices of both must be identical, every vertex must
+ * lie on its box with a unit axis normal, and the counts and bounds must
+ * match the grid. Exits with 1 on the first failure.
+ * <p>
+ * Run with <code>java engine.ChunkMeshCheck</code>.
+ *
+ * @author Joel
+ */
+public final class ChunkMeshCheck {
+	// Side of the grid, in boxes
+	private static final int SIZE = 8;
+
+	private static final int TEX_WIDTH = 256;
+	private static final int ALL_FACES = 0x3f;
+
+	private ChunkMeshCheck() {
+	}
+
+	public static void main(String[] args) {
+		int boxes = SIZE * SIZE * SIZE;
+		int expected = boxes * 6 * 4;
+
+		ChunkMesh growing = new ChunkMesh(4);
+		ChunkMesh sized = new ChunkMesh(expected);
+		fill(growing);
+		fill(sized);
+
+		check(growing.getVertexCount() == expected,
+				"Vertex count " + growing.getVertexCount() + " instead of " + expected);
+		check(growing.getByteCount() == expected * ChunkMesh.BYTES_PER_VERTEX,
+				"Byte count " + growing.getByteCount() + " doesn't match the vertex count");
+		check(growing.getBuffer().remaining() == growing.getByteCount(),
+				"Buffer holds " + growing.getBuffer().remaining() + " bytes instead of " + growing.getByteCount());
+
+		// Growing must not lose or reorder anything written before it
+		FloatBuffer grown = floats(growing), reference = floats(sized);
+		for (int i = 0; i < reference.limit(); i++) {
+			check(grown.get(i) == reference.get(i), "Float " + i + " differs after growing: "
+					+ grown.get(i) + " instead of " + reference.get(i));
+		}
+
+		checkVertices(grown);
+
+		float[] bounds = new float[6];
+		growing.getBounds(bounds, 0);
+		for (int a = 0; a < 3; a++) {
+			check(bounds[a] == 0f && bounds[a + 3] == SIZE, "Bounds on axis " + a + " are "
+					+ bounds[a] + " to " + bounds[a + 3] + " instead of 0 to " + SIZE);
+		}
+
+		// Clearing keeps the grown buffer but starts the vertices over
+		growing.clear();
+		check(growing.getVertexCount() == 0 && growing.getBuffer().remaining() == 0, "Not empty after clear");
+		growing.addBox(0f, 0f, 0f, ALL_FACES, TEX_WIDTH, 0, 1, 2, 3, 4, 5);
+		FloatBuffer refilled = floats(growing);
+		for (int i = 0; i < refilled.limit(); i++) {
+			check(refilled.get(i) == reference.get(i), "Float " + i + " differs after clear");
+		}
+
+		System.out.println(expected + " vertices packed, grown from 4");
+	}
+
+	private static void fill(ChunkMesh mesh) {
+		for (int x = 0; x < SIZE; x++) {
+			for (int y = 0; y < SIZE; y++) {
+				for (int z = 0; z < SIZE; z++) {
+					int tile = (x + y + z) % 6;
+					mesh.addBox(x, y, z, ALL_FACES, TEX_WIDTH, tile, tile + 1, tile + 2, tile + 3, tile + 4, tile + 5);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks every quad lies on the face of one unit box, with a unit axis
+	 * normal pointing out of it and no tile rectangle.
+	 */
+	private static void checkVertices(FloatBuffer floats) {
+		int stride = ChunkMesh.FLOATS_PER_VERTEX;
+		int normal = ChunkMesh.NORMAL_OFFSET / 4, tile = ChunkMesh.TILE_OFFSET / 4;
+
+		for (int q = 0; q < floats.limit() / (4 * stride); q++) {
+			int base = q * 4 * stride;
+
+			// The box is the one whose minimum corner is the quad's minimum
+			// less the normal where it points outwards
+			float[] min = { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE };
+			for (int v = 0; v < 4; v++) {
+				for (int a = 0; a < 3; a++) {
+					min[a] = Math.min(min[a], floats.get(base + v * stride + a));
+				}
+			}
+			for (int a = 0; a < 3; a++) {
+				if (floats.get(base + normal + a) > 0f) {
+					min[a] -= 1f;
+				}
+			}
+
+			for (int v = 0; v < 4; v++) {
+				int i = base + v * stride;
+				float length = 0f;
+				for (int a = 0; a < 3; a++) {
+					float offset = floats.get(i + a) - min[a];
+					check(offset == 0f || offset == 1f, "Quad " + q + " vertex " + v + " is off its box");
+					length += Math.abs(floats.get(i + normal + a));
+				}
+				check(length == 1f, "Quad " + q + " vertex " + v + " normal is not a unit axis");
+				for (int t = 0; t < 4; t++) {
+					check(floats.get(i + tile + t) == 0f, "Quad " + q + " has a tile rectangle");
+				}
+			}
+		}
+	}
+
+	private static FloatBuffer floats(ChunkMesh mesh) {
+		// ChunkMesh writes floats in native order
+		return mesh.getBuffer().order(ByteOrder.nativeOrder()).asFloatBuffer();
+	}
+
+	private static void check(boolean ok, String message) {
+		if (!ok) {
+			System.out.println(message);
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,302 @@
+package engine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Checks greedy meshing against per-face meshing headless, with no test
+ * framework. The same scene is rendered through a <code>RecordingBackend</code>
+ * both ways, and every unit face of the per-face chunks is sampled in the
+ * greedy chunks the way the greedy_tiles shader samples it, with
+ * <code>mix(tile.xy, tile.zw, fract(uv))</code>. Each face is sampled at its
+ * centre and just inside each corner, so flipped or shifted tiles and seams
+ * between repeats show up. Prints the quad and byte counts of each, and exits
+ * with 1 if any face is missing, extra or textured differently.
+ * <p>
+ * Run with <code>java engine.GreedyMeshComparison</code>.
+ *
+ * @author Joel
+ */
+public final class GreedyMeshComparison {
+	// Side of the scene, in boxes
+	private static final int SIZE = 16;
+
+	// Texture width (8 tiles per row)
+	private static final int TEX_WIDTH = 256;
+
+	// Unit offset of the neighbour each face looks at, by face
+	private static final int[][] NEIGHBOURS = {
+		{ 0, 1, 0 }, { 0, 0, 1 }, { -1, 0, 0 }, { 1, 0, 0 }, { 0, 0, -1 }, { 0, -1, 0 } };
+
+	private static final float EPSILON = 1e-4f;
+
+	// Where each face is sampled, as fractions across and up it: the centre,
+	// then just inside each corner
+	private static final float[][] SAMPLES = {
+		{ 0.5f, 0.5f }, { 0.01f, 0.01f }, { 0.99f, 0.01f }, { 0.01f, 0.99f }, { 0.99f, 0.99f } };
+
+	private GreedyMeshComparison() {
+	}
+
+	/**
+	 * A unit box drawn with drawBox.
+	 */
+	private static final class Box extends Entity {
+		private final Position position = new Position();
+		private final List<GraphicResource> resources = new ArrayList<GraphicResource>();
+		private final int tile;
+		private int exposedFaces;
+		private int slot;
+
+		Box(int x, int y, int z, int tile, final Graphic graphic) {
+			position.x = x;
+			position.y = y;
+			position.z = z;
+			this.tile = tile;
+			resources.add(new GraphicResource() {
+				@Override
+				public Graphic getGraphic() {
+					return graphic;
+				}
+			});
+		}
+
+		@Override
+		public Position getPosition() {
+			return position;
+		}
+
+		@Override
+		public int getExposedFaces() {
+			return exposedFaces;
+		}
+
+		@Override
+		public List<GraphicResource> getGraphicResources() {
+			return resources;
+		}
+
+		@Override
+		public int getRenderSlot() {
+			return slot;
+		}
+
+		@Override
+		public void draw(GraphicResource resource) {
+			// Grass-style box: own tile on top, the next row down the sides
+			GraphicEngine.drawBox(this, resource.getGraphic(),
+					tile, tile + 8, tile + 8, tile + 8, tile + 8, tile + 16);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, float[]> perFace = new HashMap<String, float[]>();
+		int[] plain = render(false, perFace);
+
+		Map<String, float[]> greedy = new HashMap<String, float[]>();
+		int[] merged = render(true, greedy);
+
+		System.out.println("Per-face: " + plain[0] + " quads, " + plain[1] + " bytes");
+		System.out.println("Greedy:   " + merged[0] + " quads, " + merged[1] + " bytes ("
+				+ (100 * merged[0] / Math.max(plain[0], 1)) + "% of the quads)");
+
+		int mismatches = 0;
+		for (Map.Entry<String, float[]> face : perFace.entrySet()) {
+			float[] expected = face.getValue();
+			float[] actual = greedy.get(face.getKey());
+
+			if (actual == null) {
+				System.out.println("Missing from greedy mesh: " + face.getKey());
+				mismatches++;
+			} else {
+				for (int i = 0; i < expected.length; i += 2) {
+					if (Math.abs(actual[i] - expected[i]) > EPSILON
+							|| Math.abs(actual[i + 1] - expected[i + 1]) > EPSILON) {
+						System.out.println("Texel differs at " + face.getKey() + " sample " + i / 2 + ": "
+								+ actual[i] + "," + actual[i + 1] + " instead of " + expected[i] + "," + expected[i + 1]);
+						mismatches++;
+						break;
+					}
+				}
+			}
+		}
+		for (String key : greedy.keySet()) {
+			if (!perFace.containsKey(key)) {
+				System.out.println("Extra face in greedy mesh: " + key);
+				mismatches++;
+			}
+		}
+
+		System.out.println(mismatches == 0 ? perFace.size() + " faces match" : mismatches + " mismatches");
+		System.exit(mismatches == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Renders the scene headless and samples every unit face of the chunks
+	 * uploaded.
+	 * @param
+	 * 			greedy		Whether to mesh greedily
+	 * 			faces		Receives the texels sampled on each face
+	 * @return
+	 * 			Quads and bytes uploaded
+	 */
+	private static int[] render(boolean greedy, Map<String, float[]> faces) throws IOException, InterruptedException {
+		RecordingBackend backend = new RecordingBackend();
+		backend.setKeepingBuffers(true);
+		GraphicEngine.initialiseHeadless(backend);
+		GraphicEngine.setGreedyMeshing(greedy);
+
+		ByteBuffer pixels = ByteBuffer.allocateDirect(TEX_WIDTH * TEX_WIDTH * 4);
+		Graphic graphic = GraphicEngine.uploadTexture("greedy.png", new TextureData(TEX_WIDTH, TEX_WIDTH, true, pixels),
+				GraphicFunction.TEXTURE);
+
+		for (Box box : buildScene(graphic)) {
+			box.slot = GraphicEngine.register(box);
+		}
+
+		// Chunks are built by the workers and uploaded over the next frames
+		GraphicEngine.render();
+		while (GraphicEngine.getChunksPending() > 0) {
+			Thread.sleep(1);
+			GraphicEngine.render();
+		}
+		GraphicEngine.render();
+
+		int quads = 0, bytes = 0;
+		for (ByteBuffer data : backend.getBufferContents().values()) {
+			// ChunkMesh writes floats in native order
+			FloatBuffer floats = data.duplicate().order(ByteOrder.nativeOrder()).asFloatBuffer();
+			for (int q = 0; q < floats.limit() / (4 * ChunkMesh.FLOATS_PER_VERTEX); q++) {
+				sampleQuad(floats, q * 4 * ChunkMesh.FLOATS_PER_VERTEX, faces);
+				quads++;
+			}
+			bytes += data.remaining();
+		}
+
+		return new int[] { quads, bytes };
+	}
+
+	/**
+	 * A floor in blocks of a few tiles, a wall along one edge and boxes
+	 * scattered above, with faces against other boxes hidden.
+	 */
+	private static List<Box> buildScene(Graphic graphic) {
+		Random random = new Random(SIZE);
+		Map<String, Box> boxes = new HashMap<String, Box>();
+
+		for (int x = 0; x < SIZE; x++) {
+			for (int z = 0; z < SIZE; z++) {
+				add(boxes, new Box(x, 0, z, (x / 4 + z / 4) % 3, graphic));
+			}
+			for (int y = 1; y <= 4; y++) {
+				add(boxes, new Box(x, y, 0, 3, graphic));
+			}
+		}
+		for (int i = 0; i < SIZE * 2; i++) {
+			add(boxes, new Box(random.nextInt(SIZE), 5 + random.nextInt(4), random.nextInt(SIZE),
+					random.nextInt(8), graphic));
+		}
+
+		Set<String> occupied = new HashSet<String>(boxes.keySet());
+		for (Box box : boxes.values()) {
+			Position p = box.getPosition();
+			for (int face = 0; face < 6; face++) {
+				int[] n = NEIGHBOURS[face];
+				if (!occupied.contains(key((int) p.x + n[0], (int) p.y + n[1], (int) p.z + n[2]))) {
+					box.exposedFaces |= 1 << face;
+				}
+			}
+		}
+
+		return new ArrayList<Box>(boxes.values());
+	}
+
+	private static void add(Map<String, Box> boxes, Box box) {
+		Position p = box.getPosition();
+		boxes.put(key((int) p.x, (int) p.y, (int) p.z), box);
+	}
+
+	private static String key(int x, int y, int z) {
+		return x + "," + y + "," + z;
+	}
+
+	/**
+	 * Samples each unit face a quad covers at its centre and corners, as the
+	 * greedy_tiles fragment shader would.
+	 * @param
+	 * 			floats		Chunk vertices
+	 * 			base		Index of the quad's first float
+	 * 			faces		Receives the texels of each face (u, v per sample),
+	 * 						keyed by box and normal
+	 */
+	private static void sampleQuad(FloatBuffer floats, int base, Map<String, float[]> faces) {
+		int bl = base, br = base + ChunkMesh.FLOATS_PER_VERTEX, tl = base + 3 * ChunkMesh.FLOATS_PER_VERTEX;
+		int uv = ChunkMesh.UV_OFFSET / 4, tile = ChunkMesh.TILE_OFFSET / 4;
+
+		int width = Math.round(distance(floats, bl, br));
+		int height = Math.round(distance(floats, bl, tl));
+		float[] point = new float[3];
+
+		for (int j = 0; j < height; j++) {
+			for (int i = 0; i < width; i++) {
+				float[] texels = new float[SAMPLES.length * 2];
+
+				for (int k = 0; k < SAMPLES.length; k++) {
+					float s = (i + SAMPLES[k][0]) / width, t = (j + SAMPLES[k][1]) / height;
+					float u = lerp(floats, bl + uv, br + uv, tl + uv, 0, s, t);
+					float v = lerp(floats, bl + uv, br + uv, tl + uv, 1, s, t);
+
+					// Repeat tiled faces' UVs within their tile rectangle
+					float x1 = floats.get(bl + tile), y1 = floats.get(bl + tile + 1);
+					float x2 = floats.get(bl + tile + 2), y2 = floats.get(bl + tile + 3);
+					if (x1 != 0f || y1 != 0f || x2 != 0f || y2 != 0f) {
+						u = x1 + (x2 - x1) * fract(u);
+						v = y1 + (y2 - y1) * fract(v);
+					}
+
+					texels[k * 2] = u;
+					texels[k * 2 + 1] = v;
+				}
+
+				// Step half a unit inside the box from the centre to find which box it is
+				float s = (i + 0.5f) / width, t = (j + 0.5f) / height;
+				for (int a = 0; a < 3; a++) {
+					point[a] = lerp(floats, bl, br, tl, a, s, t);
+				}
+				int nx = Math.round(floats.get(bl + 3)), ny = Math.round(floats.get(bl + 4)), nz = Math.round(floats.get(bl + 5));
+				String key = key((int) Math.floor(point[0] - nx * 0.5f), (int) Math.floor(point[1] - ny * 0.5f),
+						(int) Math.floor(point[2] - nz * 0.5f)) + " normal " + key(nx, ny, nz);
+				faces.put(key, texels);
+			}
+		}
+	}
+
+	private static float distance(FloatBuffer floats, int from, int to) {
+		float dx = floats.get(to) - floats.get(from);
+		float dy = floats.get(to + 1) - floats.get(from + 1);
+		float dz = floats.get(to + 2) - floats.get(from + 2);
+		return (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+	}
+
+	/**
+	 * Interpolates one float of a vertex across a quad, from its bottom left
+	 * corner towards the bottom right (s) and top left (t).
+	 */
+	private static float lerp(FloatBuffer floats, int bl, int br, int tl, int a, float s, float t) {
+		float origin = floats.get(bl + a);
+		return origin + (floats.get(br + a) - origin) * s + (floats.get(tl + a) - origin) * t;
+	}
+
+	private static float fract(float f) {
+		return f - (float) Math.floor(f);
+	}
+}
@@ -0,0 +1,182 @@
+package com.edutect.up.api.jackson;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.cirrusaustralia.cub.ejb.UpEntity;
+import com.fasterxml.jackson.databind.JavaType;
+
+/**
+ * Checks that <code>EntityPrefetch.read</code> finds the managed entities of
+ * a nested document in one bulk lookup per class, with no finds one entity
+ * at a time, headless and with no test framework. The finder is a stub that
+ * counts its calls and returns an entity for every ID asked for. Single finds
+ * go through the shared <code>EntityCache</code>, so they are counted by its
+ * misses. Exits with 1 if any single find is made, the bulk lookups aren't one
+ * per class, or an entity lost its ID.
+ * <p>
+ * Run with <code>java com.edutect.up.api.jackson.PrefetchCheck</code>.
+ *
+ * @author Joel
+ */
+public final class PrefetchCheck {
+	// Units in the document, and the topics of each
+	private static final int UNITS = 50;
+	private static final int TOPICS = 4;
+
+	private PrefetchCheck() {
+	}
+
+	public static class Unit extends UpEntity {
+		private String name;
+		private List<Topic> topics;
+
+		public String getName() {
+			return name;
+		}
+
+		public void setName(String name) {
+			this.name = name;
+		}
+
+		public List<Topic> getTopics() {
+			return topics;
+		}
+
+		public void setTopics(List<Topic> topics) {
+			this.topics = topics;
+		}
+	}
+
+	public static class Topic extends UpEntity {
+		private String title;
+		private Person author;
+
+		public String getTitle() {
+			return title;
+		}
+
+		public void setTitle(String title) {
+			this.title = title;
+		}
+
+		public Person getAuthor() {
+			return author;
+		}
+
+		public void setAuthor(Person author) {
+			this.author = author;
+		}
+	}
+
+	public static class Person extends UpEntity {
+		private String name;
+
+		public String getName() {
+			return name;
+		}
+
+		public void setName(String name) {
+			this.name = name;
+		}
+	}
+
+	/**
+	 * Finder that makes an entity for every ID and counts its calls.
+	 */
+	private static final class CountingFinder implements EntityPrefetch.Finder {
+		int lookups;
+		int ids;
+
+		@Override
+		public List<? extends UpEntity> findAll(Class<? extends UpEntity> type, long[] batch) {
+			lookups++;
+			ids += batch.length;
+
+			List<UpEntity> found = new ArrayList<UpEntity>(batch.length);
+			for (long id : batch) {
+				try {
+					UpEntity entity = type.getConstructor().newInstance();
+					entity.setId(id);
+					found.add(entity);
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			}
+			return found;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		UpObjectMapper mapper = new UpObjectMapper();
+		JavaType type = mapper.getTypeFactory().constructCollectionType(List.class, Unit.class);
+		byte[] json = document().getBytes("UTF-8");
+
+		EntityCache cache = EntityCache.getInstance();
+		cache.clear();
+		long finds = cache.getMisses();
+
+		CountingFinder finder = new CountingFinder();
+		EntityPrefetch prefetch = new EntityPrefetch();
+		List<Unit> units = prefetch.read(mapper, finder, json, type);
+		finds = cache.getMisses() - finds;
+
+		System.out.println(UNITS + " units, " + UNITS * TOPICS + " topics, " + UNITS + " authors: "
+				+ finder.lookups + " bulk lookups for " + finder.ids + " IDs, " + finds + " single finds");
+
+		check(finds == 0, finds + " entities were found one at a time");
+		check(finder.lookups == 3, finder.lookups + " bulk lookups instead of one per class");
+		check(units.size() == UNITS, units.size() + " units read instead of " + UNITS);
+		for (Unit unit : units) {
+			check(unit.getId() != 0, "Unit " + unit.getName() + " lost its ID");
+			for (Topic topic : unit.getTopics()) {
+				check(topic.getId() != 0 && topic.getAuthor().getId() != 0,
+						"Topic " + topic.getTitle() + " or its author lost its ID");
+			}
+		}
+	}
+
+	/**
+	 * Units with several topics each, every topic with an author. Each unit
+	 * has its own author, who writes all of its topics and appears in full
+	 * once and by reference after that.
+	 */
+	private static String document() {
+		StringBuilder json = new StringBuilder("[");
+		int topicId = 1000;
+
+		for (int u = 0; u < UNITS; u++) {
+			if (u > 0) {
+				json.append(',');
+			}
+			json.append("{\"jsonId\":\"u").append(u).append("\",\"id\":").append(u + 1)
+					.append(",\"name\":\"Unit ").append(u).append("\",\"topics\":[");
+
+			for (int t = 0; t < TOPICS; t++) {
+				if (t > 0) {
+					json.append(',');
+				}
+				json.append("{\"jsonId\":\"t").append(topicId).append("\",\"id\":").append(topicId)
+						.append(",\"title\":\"Topic ").append(topicId).append("\",\"author\":");
+				if (t == 0) {
+					json.append("{\"jsonId\":\"p").append(u).append("\",\"id\":").append(500 + u)
+							.append(",\"name\":\"Author ").append(u).append("\"}");
+				} else {
+					json.append("\"p").append(u).append('"');
+				}
+				json.append('}');
+				topicId++;
+			}
+			json.append("]}");
+		}
+
+		return json.append(']').toString();
+	}
+
+	private static void check(boolean ok, String message) {
+		if (!ok) {
+			System.out.println(message);
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,451 @@
+package engine;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * JMH benchmarks for the rendering hot paths, runnable without a GPU. The
+ * engine is started headless on a <code>RecordingBackend</code>, so frames
+ * go through all of render()'s bookkeeping with the GL calls only counted.
+ * Chunk recording, meshing, indexing and culling are measured directly at
+ * several chunk sizes, world sizes and densities.
+ *
+ * @author Joel
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RenderBenchmark {
+
+	/**
+	 * Pixel conversion for each image layout convertPixels handles.
+	 */
+	@State(Scope.Benchmark)
+	public static class Pixels {
+		@Param({ "64", "256", "1024" })
+		public int size;
+
+		@Param({ "6", "2", "1" }) // TYPE_4BYTE_ABGR, TYPE_INT_ARGB, TYPE_INT_RGB
+		public int type;
+
+		BufferedImage image;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			image = new BufferedImage(size, size, type);
+			Random random = new Random(size);
+			for (int y = 0; y < size; y++) {
+				for (int x = 0; x < size; x++) {
+					image.setRGB(x, y, random.nextInt());
+				}
+			}
+		}
+	}
+
+	@Benchmark
+	public ByteBuffer convertPixels(Pixels p) {
+		return GraphicEngine.convertPixels(p.image);
+	}
+
+	/**
+	 * One chunk's worth of boxes at a given size and fill density, with
+	 * exposed faces from a <code>ChunkOccupancy</code>.
+	 */
+	@State(Scope.Thread)
+	public static class Chunk {
+		@Param({ "8", "16", "32" })
+		public int size;
+
+		@Param({ "0.1", "0.5", "1.0" })
+		public float density;
+
+		long[] solid;
+		ChunkOccupancy occupancy;
+		ChunkSnapshot snapshot;
+		ChunkMesh mesh;
+		GreedyMesher greedyMesher;
+		Graphic graphic;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			Random random = new Random(size);
+			solid = new long[size * size];
+			for (int i = 0; i < solid.length; i++) {
+				for (int x = 0; x < size; x++) {
+					if (random.nextFloat() < density) {
+						solid[i] |= 1L << x;
+					}
+				}
+			}
+
+			occupancy = new ChunkOccupancy(size);
+			occupancy.setAll(solid);
+
+			graphic = new Graphic(1, 256, 256, GraphicFunction.TEXTURE, 1);
+			snapshot = new ChunkSnapshot();
+			mesh = new ChunkMesh();
+			greedyMesher = new GreedyMesher();
+		}
+
+		void record(boolean greedy) {
+			snapshot.reset(graphic, 0, 0, greedy, null);
+			for (int y = 0; y < size; y++) {
+				for (int z = 0; z < size; z++) {
+					for (int x = 0; x < size; x++) {
+						snapshot.addBox(x, y, z, occupancy.getFaces(x, y, z), 0, 1, 2, 3, 4, 5);
+					}
+				}
+			}
+		}
+	}
+
+	@Benchmark
+	public long[] occupancyFaces(Chunk c) {
+		c.occupancy.setAll(c.solid);
+		return c.occupancy.getFaceRows(ChunkMesh.FACE_TOP);
+	}
+
+	@Benchmark
+	public int recordChunk(Chunk c) {
+		c.record(false);
+		return c.snapshot.getBoxCount();
+	}
+
+	@Benchmark
+	public int buildChunk(Chunk c) {
+		c.record(false);
+		c.snapshot.build(c.mesh, c.greedyMesher);
+		return c.mesh.getVertexCount();
+	}
+
+	@Benchmark
+	public int buildChunkGreedy(Chunk c) {
+		c.record(true);
+		c.snapshot.build(c.mesh, c.greedyMesher);
+		return c.mesh.getVertexCount();
+	}
+
+	/**
+	 * Entities moving around a world of chunks, indexed the way render()
+	 * indexes them, and the world's chunk bounds culled against a frustum.
+	 */
+	@State(Scope.Thread)
+	public static class Entities {
+		// Chunks along each side
+		@Param({ "8", "16", "32" })
+		public int chunks;
+
+		// Entities per chunk
+		@Param({ "1", "16", "64" })
+		public int density;
+
+		int entities;
+		int[] entityChunks;
+		ChunkIndex index;
+		SlotSet moved;
+		ChunkTable table;
+		Frustum frustum;
+		Random random;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			int total = chunks * chunks * chunks;
+			entities = total * density;
+			random = new Random(chunks * 31 + density);
+
+			entityChunks = new int[entities];
+			index = new ChunkIndex();
+			moved = new SlotSet();
+			for (int slot = 0; slot < entities; slot++) {
+				entityChunks[slot] = random.nextInt(total);
+				index.put(slot, entityChunks[slot]);
+			}
+
+			table = new ChunkTable(total);
+			for (int chunk = 0; chunk < total; chunk++) {
+				int slot = table.add(chunk, chunk + 1);
+				float x = chunk % chunks * 16f;
+				float y = chunk / chunks % chunks * 16f;
+				float z = chunk / (chunks * chunks) * 16f;
+				float[] bounds = table.getBounds();
+				bounds[slot * 6 + 0] = x;
+				bounds[slot * 6 + 1] = y;
+				bounds[slot * 6 + 2] = z;
+				bounds[slot * 6 + 3] = x + 16f;
+				bounds[slot * 6 + 4] = y + 16f;
+				bounds[slot * 6 + 5] = z + 16f;
+			}
+
+			frustum = new Frustum();
+			frustum.set(perspective(70f, 4f / 3f, 0.1f, 200f), lookAt(-8f, 24f, -8f));
+		}
+	}
+
+	/**
+	 * Moves a tenth of the entities to a random chunk and reindexes them.
+	 */
+	@Benchmark
+	public int indexMovedEntities(Entities w) {
+		int total = w.chunks * w.chunks * w.chunks;
+		for (int i = 0; i < w.entities / 10; i++) {
+			int slot = w.random.nextInt(w.entities);
+			w.entityChunks[slot] = w.random.nextInt(total);
+			w.moved.add(slot);
+		}
+
+		int dirty = 0;
+		for (int i = 0; i < w.moved.size(); i++) {
+			int slot = w.moved.get(i);
+			if (w.index.getChunk(slot) != w.entityChunks[slot]) {
+				dirty++;
+			}
+			w.index.put(slot, w.entityChunks[slot]);
+		}
+		w.moved.clear();
+
+		return dirty;
+	}
+
+	@Benchmark
+	public int cullChunks(Entities w) {
+		float[] bounds = w.table.getBounds();
+		int visible = 0;
+
+		for (int i = 0; i < w.table.size(); i++) {
+			int b = i * 6;
+			if (w.frustum.intersects(bounds[b], bounds[b + 1], bounds[b + 2], bounds[b + 3], bounds[b + 4], bounds[b + 5])) {
+				visible++;
+			}
+		}
+
+		return visible;
+	}
+
+	/**
+	 * The engine running headless with a number of graphics set up, and
+	 * entities spread across the world's chunks, dealt out to the graphics
+	 * in turn. The camera looks over the world, so some chunks are culled.
+	 */
+	@State(Scope.Benchmark)
+	public static class Engine {
+		@Param({ "16", "256" })
+		public int graphics;
+
+		@Param({ "1000", "10000" })
+		public int entities;
+
+		RecordingBackend backend;
+		Box[] boxes;
+		Random random;
+
+		@Setup(Level.Trial)
+		public void setup() throws InterruptedException {
+			backend = new RecordingBackend();
+			GraphicEngine.initialiseHeadless(backend);
+			backend.setMatrices(perspective(70f, 4f / 3f, 0.1f, 200f), lookAt(-8f, 24f, -8f));
+
+			Graphic[] textures = new Graphic[graphics];
+			for (int i = 0; i < graphics; i++) {
+				ByteBuffer pixels = ByteBuffer.allocateDirect(32 * 32 * 4);
+				TextureData data = new TextureData(32, 32, true, pixels);
+				textures[i] = GraphicEngine.uploadTexture("bench" + i + ".png", data, GraphicFunction.TEXTURE);
+			}
+
+			random = new Random(graphics * 31 + entities);
+			boxes = new Box[entities];
+			for (int i = 0; i < entities; i++) {
+				boxes[i] = new Box(textures[i % graphics]);
+				boxes[i].moveRandomly(random);
+				boxes[i].slot = GraphicEngine.register(boxes[i]);
+			}
+
+			buildAll();
+		}
+	}
+
+	/**
+	 * Moves a tenth of the entities to random places, then renders a frame,
+	 * which reindexes them and rebuilds the chunks they left and entered.
+	 * Waits for the workers to build those chunks, which are uploaded next
+	 * frame, so the time includes the builds and they can't pile up.
+	 */
+	@Benchmark
+	public void renderFrame(Engine e, Blackhole bh) {
+		for (int i = 0; i < e.entities / 10; i++) {
+			Box box = e.boxes[e.random.nextInt(e.entities)];
+			box.moveRandomly(e.random);
+			GraphicEngine.addToRenderSet(box);
+		}
+
+		GraphicEngine.render();
+		while (GraphicEngine.getChunksPending() > 0) {
+			Thread.yield();
+		}
+		bh.consume(e.backend.getDrawCalls());
+	}
+
+	@Benchmark
+	public Graphic getGraphic(Engine e) {
+		return GraphicEngine.getGraphic("bench0.png");
+	}
+
+	/**
+	 * The engine running headless with entities registered and built, to
+	 * check that a frame where nothing moves allocates nothing. Run with
+	 * <code>-prof gc</code>: renderSteadyFrame should report a
+	 * gc.alloc.rate.norm of 0 B/op.
+	 */
+	@State(Scope.Benchmark)
+	public static class Steady {
+		@Param({ "1000", "10000" })
+		public int entities;
+
+		RecordingBackend backend;
+		Box[] boxes;
+
+		@Setup(Level.Trial)
+		public void setup() throws InterruptedException {
+			backend = new RecordingBackend();
+			GraphicEngine.initialiseHeadless(backend);
+
+			ByteBuffer pixels = ByteBuffer.allocateDirect(256 * 256 * 4);
+			Graphic graphic = GraphicEngine.uploadTexture("steady.png", new TextureData(256, 256, true, pixels),
+					GraphicFunction.TEXTURE);
+
+			Random random = new Random(entities);
+			boxes = new Box[entities];
+			for (int i = 0; i < entities; i++) {
+				boxes[i] = new Box(graphic);
+				boxes[i].moveRandomly(random);
+				boxes[i].slot = GraphicEngine.register(boxes[i]);
+			}
+
+			buildAll();
+		}
+	}
+
+	/**
+	 * Renders a frame in which no entity has changed or moved.
+	 */
+	@Benchmark
+	public void renderSteadyFrame(Steady s, Blackhole bh) {
+		GraphicEngine.render();
+		bh.consume(s.backend.getDrawCalls());
+	}
+
+	/**
+	 * Renders until the workers have built every dirty chunk and the last
+	 * of them is uploaded, so measurements start from a built world.
+	 */
+	static void buildAll() throws InterruptedException {
+		GraphicEngine.render();
+		while (GraphicEngine.getChunksPending() > 0) {
+			Thread.sleep(1);
+			GraphicEngine.render();
+		}
+		GraphicEngine.render();
+	}
+
+	/**
+	 * A unit box entity drawn with drawBox.
+	 */
+	static final class Box extends Entity {
+		private final Position position = new Position();
+		private final List<GraphicResource> resources;
+		int slot;
+
+		Box(final Graphic graphic) {
+			resources = Collections.<GraphicResource>singletonList(new GraphicResource() {
+				@Override
+				public Graphic getGraphic() {
+					return graphic;
+				}
+			});
+		}
+
+		/**
+		 * Moves to a random cell of a 128 x 32 x 128 unit world.
+		 */
+		void moveRandomly(Random random) {
+			position.x = random.nextInt(128);
+			position.y = random.nextInt(32);
+			position.z = random.nextInt(128);
+		}
+
+		@Override
+		public Position getPosition() {
+			return position;
+		}
+
+		@Override
+		public int getExposedFaces() {
+			return 0x3f;
+		}
+
+		@Override
+		public List<GraphicResource> getGraphicResources() {
+			return resources;
+		}
+
+		@Override
+		public int getRenderSlot() {
+			return slot;
+		}
+
+		@Override
+		public void draw(GraphicResource resource) {
+			GraphicEngine.drawBox(this, resource.getGraphic(), 0, 1, 1, 1, 1, 2);
+		}
+	}
+
+	/**
+	 * Builds a column-major perspective matrix, as gluPerspective would.
+	 */
+	static float[] perspective(float fovy, float aspect, float near, float far) {
+		float f = (float) (1.0 / Math.tan(Math.toRadians(fovy) / 2.0));
+		float[] m = new float[16];
+		m[0] = f / aspect;
+		m[5] = f;
+		m[10] = (far + near) / (near - far);
+		m[11] = -1f;
+		m[14] = 2f * far * near / (near - far);
+		return m;
+	}
+
+	/**
+	 * Builds a modelview matrix for a camera at (x, y, z) looking down +z.
+	 * The camera's rotation is a half turn about y, and its translation is
+	 * the eye position rotated and negated.
+	 */
+	static float[] lookAt(float x, float y, float z) {
+		float[] m = new float[16];
+		m[0] = -1f;
+		m[5] = 1f;
+		m[10] = -1f;
+		m[12] = -(m[0] * x + m[4] * y + m[8] * z);
+		m[13] = -(m[1] * x + m[5] * y + m[9] * z);
+		m[14] = -(m[2] * x + m[6] * y + m[10] * z);
+		m[15] = 1f;
+		return m;
+	}
+}